@@ -0,0 +1,104 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import de.lemaik.renderservice.regionprocessor.chunky.ChunkSelection;
+import de.lemaik.renderservice.regionprocessor.rendering.Job;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses a {@link Job} and a scene description the way the node does when it prepares an
+ * assignment, with one region file per 32x32 chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonParsingBenchmark {
+
+  private static final Gson gson = new Gson();
+
+  @Param({"16", "128"})
+  public int chunksPerSide;
+
+  private String jobJson;
+  private String sceneJson;
+
+  @Setup
+  public void setUp() {
+    JsonObject job = new JsonObject();
+    job.addProperty("_id", "5f0c8a5e4b1d2c0017a3b9e1");
+    job.addProperty("texturepack", "faithful");
+    job.addProperty("cancelled", false);
+    JsonArray files = new JsonArray();
+    files.add(jobFile("scene", "scene.json", "/jobs/5f0c8a5e4b1d2c0017a3b9e1/scene", 4096));
+    int regionsPerSide = (chunksPerSide + 31) / 32;
+    for (int x = 0; x < regionsPerSide; x++) {
+      for (int z = 0; z < regionsPerSide; z++) {
+        String name = "r." + x + "." + z + ".mca";
+        files.add(jobFile("region", name, "/files/" + x + "-" + z + "/" + name, 8 * 1024 * 1024));
+      }
+    }
+    job.add("files", files);
+    jobJson = job.toString();
+    WorldGenerator generator = new WorldGenerator(0);
+    generator.setSize(chunksPerSide, chunksPerSide);
+    sceneJson = generator.createScene().toString();
+  }
+
+  private static JsonObject jobFile(String type, String name, String url, long size) {
+    JsonObject file = new JsonObject();
+    file.addProperty("type", type);
+    file.addProperty("name", name);
+    file.addProperty("url", url);
+    file.addProperty("size", size);
+    return file;
+  }
+
+  @Benchmark
+  public Job parseJob() {
+    return gson.fromJson(jobJson, Job.class);
+  }
+
+  @Benchmark
+  public JsonObject parseScene() {
+    return gson.fromJson(sceneJson, JsonObject.class);
+  }
+
+  @Benchmark
+  public int parseChunkSelection() {
+    return ChunkSelection.fromScene(gson.fromJson(sceneJson, JsonObject.class)).size();
+  }
+}
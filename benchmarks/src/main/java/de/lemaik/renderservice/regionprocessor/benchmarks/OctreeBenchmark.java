@@ -0,0 +1,96 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.benchmarks;
+
+import de.lemaik.renderservice.regionprocessor.chunky.BinarySceneData;
+import de.lemaik.renderservice.regionprocessor.chunky.EmbeddedChunkyWrapper;
+import de.lemaik.renderservice.regionprocessor.util.FileUtil;
+import de.lemaik.renderservice.regionprocessor.util.SegmentPool;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.llbit.chunky.PersistentSettings;
+
+/**
+ * Generates the octree of a generated world with {@link EmbeddedChunkyWrapper#generateOctree},
+ * for 16 (small), 256 (medium) and 1024 (large) chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OctreeBenchmark {
+
+  @Param({"4", "16", "32"})
+  public int chunksPerSide;
+
+  @Param({"0.01"})
+  public double emitterDensity;
+
+  private File directory;
+  private File sceneFile;
+  private SegmentPool bufferPool;
+  private EmbeddedChunkyWrapper chunky;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("octree-benchmark").toFile();
+    File chunkyHome = new File(directory, "chunky");
+    chunkyHome.mkdirs();
+    PersistentSettings.changeSettingsDirectory(chunkyHome);
+    PersistentSettings.setDisableDefaultTextures(true);
+
+    File worldDirectory = new File(directory, "world");
+    WorldGenerator generator = new WorldGenerator(0);
+    generator.setSize(chunksPerSide, chunksPerSide);
+    generator.setEmitterDensity(emitterDensity);
+    sceneFile = generator.generate(worldDirectory);
+    bufferPool = new SegmentPool(1024 * 1024, 256);
+    chunky = new EmbeddedChunkyWrapper(bufferPool);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    FileUtil.deleteDirectory(directory);
+  }
+
+  @Benchmark
+  public long generateOctree() throws IOException {
+    try (BinarySceneData data = chunky.generateOctree(sceneFile, sceneFile.getParentFile(), 0,
+        null)) {
+      return data.getOctreeSize();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.benchmarks;
+
+import de.lemaik.renderservice.regionprocessor.chunky.BinarySceneData;
+import de.lemaik.renderservice.regionprocessor.chunky.FileBufferRenderContext;
+import de.lemaik.renderservice.regionprocessor.util.SegmentPool;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes scene files into the buffers of a {@link FileBufferRenderContext}, the way chunky saves
+ * an octree: through a {@link DataOutputStream} with a mix of int writes and larger arrays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SceneOutputBenchmark {
+
+  @Param({"16", "128"})
+  public int sizeMb;
+
+  @Param({"false", "true"})
+  public boolean hashOutput;
+
+  private FileBufferRenderContext context;
+  private byte[] block;
+
+  @Setup
+  public void setUp() {
+    context = new FileBufferRenderContext(new SegmentPool(1024 * 1024, 512));
+    context.setHashOutput(hashOutput);
+    block = new byte[4096];
+    new Random(42).nextBytes(block);
+  }
+
+  @Benchmark
+  public long writeOctree() throws IOException {
+    long size = sizeMb * 1024L * 1024L;
+    try (DataOutputStream out = new DataOutputStream(
+        context.getSceneFileOutputStream("scene.octree2"))) {
+      long written = 0;
+      int i = 0;
+      while (written < size) {
+        // the node array is written as ints, the data arrays in larger blocks
+        if ((i++ & 1) == 0) {
+          for (int j = 0; j < 1024; j++) {
+            out.writeInt(j * 31 + i);
+          }
+        } else {
+          out.write(block);
+        }
+        written += 4096;
+      }
+    }
+    try (OutputStream out = context.getSceneFileOutputStream("scene.emittergrid")) {
+      out.write(block);
+    }
+    try (BinarySceneData data = context.takeSceneData()) {
+      return hashOutput ? data.getOctreeSha256().length() : data.getOctreeSize();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import de.lemaik.renderservice.regionprocessor.chunky.BinarySceneData;
+import de.lemaik.renderservice.regionprocessor.rendering.RenderServerApiClient;
+import de.lemaik.renderservice.regionprocessor.util.FileUtil;
+import de.lemaik.renderservice.regionprocessor.util.SegmentPool;
+import de.lemaik.renderservice.regionprocessor.util.SegmentedBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.llbit.util.ProgressListener;
+import se.llbit.util.TaskTracker;
+
+/**
+ * Uploads scene data with {@link RenderServerApiClient#uploadSceneData} to a local server that
+ * discards the request bodies, so that only the writing of the upload body is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+
+  @Param({"64"})
+  public int sizeMb;
+
+  @Param({"none", "gzip"})
+  public String compression;
+
+  private HttpServer server;
+  private File cacheDirectory;
+  private RenderServerApiClient apiClient;
+  private BinarySceneData data;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", exchange -> {
+      byte[] buffer = new byte[64 * 1024];
+      try (InputStream in = exchange.getRequestBody()) {
+        while (in.read(buffer) >= 0) {
+          // discard
+        }
+      }
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+
+    cacheDirectory = Files.createTempDirectory("upload-benchmark").toFile();
+    apiClient = new RenderServerApiClient(
+        "http://127.0.0.1:" + server.getAddress().getPort(), "benchmark", cacheDirectory, 1);
+    if (compression.equals("gzip")) {
+      apiClient.enableUploadCompression(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    // octrees compress well, so this is half random and half zeros
+    SegmentPool pool = new SegmentPool(1024 * 1024, 256);
+    SegmentedBuffer octree = new SegmentedBuffer(pool);
+    byte[] block = new byte[64 * 1024];
+    Random random = new Random(42);
+    for (int i = 0; i < sizeMb * 16; i++) {
+      random.nextBytes(block);
+      octree.write(block, 0, block.length / 2);
+      octree.write(new byte[block.length / 2]);
+    }
+    SegmentedBuffer emittergrid = new SegmentedBuffer(pool);
+    emittergrid.write(block);
+    data = new BinarySceneData(octree, emittergrid);
+  }
+
+  @TearDown
+  public void tearDown() {
+    data.close();
+    server.stop(0);
+    FileUtil.deleteDirectory(cacheDirectory);
+  }
+
+  @Benchmark
+  public void upload() throws Exception {
+    apiClient.uploadSceneData("benchmark", data, new TaskTracker(ProgressListener.NONE)).get();
+  }
+}
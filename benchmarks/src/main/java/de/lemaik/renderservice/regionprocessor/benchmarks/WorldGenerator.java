@@ -0,0 +1,398 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.lexicalscope.jewel.cli.Cli;
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+import de.lemaik.renderservice.regionprocessor.util.AnvilChunk;
+import de.lemaik.renderservice.regionprocessor.util.RegionFileWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Generates synthetic worlds in the Anvil format, with a scene description that selects all of
+ * their chunks, for benchmarks and load tests. The same seed and options always generate the same
+ * region files, regardless of the order the chunks are generated in.
+ *
+ * <p>The terrain is a smooth height field filled with a configurable number of different blocks,
+ * with water below the sea level, trees and light sources on the surface. A part of the chunks
+ * can be left out of the region files while still being selected, like chunks of a real world
+ * that were never generated.
+ */
+public class WorldGenerator {
+
+  private static final String[] FILL_BLOCKS = {
+      "minecraft:stone", "minecraft:dirt", "minecraft:granite", "minecraft:diorite",
+      "minecraft:andesite", "minecraft:gravel", "minecraft:coal_ore", "minecraft:iron_ore",
+      "minecraft:sandstone", "minecraft:clay", "minecraft:gold_ore", "minecraft:redstone_ore",
+      "minecraft:lapis_ore", "minecraft:diamond_ore", "minecraft:cobblestone",
+      "minecraft:mossy_cobblestone", "minecraft:terracotta", "minecraft:obsidian",
+      "minecraft:oak_planks", "minecraft:bricks", "minecraft:stone_bricks", "minecraft:tuff",
+      "minecraft:calcite", "minecraft:deepslate"
+  };
+  private static final String[] EMITTER_BLOCKS = {
+      "minecraft:glowstone", "minecraft:torch", "minecraft:sea_lantern", "minecraft:lantern",
+      "minecraft:jack_o_lantern", "minecraft:shroomlight"
+  };
+  private static final int NOISE_SCALE = 48; // blocks between the points of the height field
+
+  private final long seed;
+  private int chunksX = 16;
+  private int chunksZ = 16;
+  private int blockVariety = 8;
+  private int minHeight = 50;
+  private int maxHeight = 90;
+  private double emptyChunkRatio = 0;
+  private double emitterDensity = 0.01;
+  private double treeDensity = 0.005;
+
+  /**
+   * Creates a new world generator with the default options.
+   *
+   * @param seed seed of the generated world
+   */
+  public WorldGenerator(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Sets the size of the world. The chunks start at 0, 0.
+   *
+   * @param chunksX number of chunks in x direction
+   * @param chunksZ number of chunks in z direction
+   */
+  public void setSize(int chunksX, int chunksZ) {
+    if (chunksX < 1 || chunksZ < 1) {
+      throw new IllegalArgumentException("The world must have at least one chunk");
+    }
+    this.chunksX = chunksX;
+    this.chunksZ = chunksZ;
+  }
+
+  /**
+   * Sets the number of different blocks that the terrain is filled with.
+   *
+   * @param blockVariety number of different blocks, from 1 to {@link #getMaxBlockVariety()}
+   */
+  public void setBlockVariety(int blockVariety) {
+    if (blockVariety < 1 || blockVariety > FILL_BLOCKS.length) {
+      throw new IllegalArgumentException(
+          "The block variety must be between 1 and " + FILL_BLOCKS.length);
+    }
+    this.blockVariety = blockVariety;
+  }
+
+  public static int getMaxBlockVariety() {
+    return FILL_BLOCKS.length;
+  }
+
+  /**
+   * Sets the range of the terrain height.
+   *
+   * @param minHeight minimum terrain height
+   * @param maxHeight maximum terrain height, at most 240 to leave room for trees
+   */
+  public void setHeightRange(int minHeight, int maxHeight) {
+    if (minHeight < 1 || maxHeight < minHeight || maxHeight > 240) {
+      throw new IllegalArgumentException("Invalid height range " + minHeight + "-" + maxHeight);
+    }
+    this.minHeight = minHeight;
+    this.maxHeight = maxHeight;
+  }
+
+  /**
+   * Sets the fraction of chunks that are selected in the scene but not written to the region
+   * files.
+   *
+   * @param emptyChunkRatio fraction of missing chunks, from 0 to 1
+   */
+  public void setEmptyChunkRatio(double emptyChunkRatio) {
+    if (emptyChunkRatio < 0 || emptyChunkRatio > 1) {
+      throw new IllegalArgumentException("The empty chunk ratio must be between 0 and 1");
+    }
+    this.emptyChunkRatio = emptyChunkRatio;
+  }
+
+  /**
+   * Sets the probability of a light source on top of a block column.
+   *
+   * @param emitterDensity probability per column, from 0 to 1
+   */
+  public void setEmitterDensity(double emitterDensity) {
+    if (emitterDensity < 0 || emitterDensity > 1) {
+      throw new IllegalArgumentException("The emitter density must be between 0 and 1");
+    }
+    this.emitterDensity = emitterDensity;
+  }
+
+  /**
+   * Sets the probability of a tree growing on a block column.
+   *
+   * @param treeDensity probability per column, from 0 to 1
+   */
+  public void setTreeDensity(double treeDensity) {
+    if (treeDensity < 0 || treeDensity > 1) {
+      throw new IllegalArgumentException("The tree density must be between 0 and 1");
+    }
+    this.treeDensity = treeDensity;
+  }
+
+  /**
+   * Creates the scene description that selects all chunks of the world, including the chunks that
+   * are not written to the region files.
+   *
+   * @return scene description
+   */
+  public JsonObject createScene() {
+    JsonObject scene = new JsonObject();
+    scene.addProperty("sdfVersion", 9);
+    scene.addProperty("name", "scene");
+    JsonObject world = new JsonObject();
+    world.addProperty("path", "");
+    world.addProperty("dimension", 0);
+    scene.add("world", world);
+    JsonArray chunkList = new JsonArray();
+    for (int cx = 0; cx < chunksX; cx++) {
+      for (int cz = 0; cz < chunksZ; cz++) {
+        JsonArray chunk = new JsonArray();
+        chunk.add(cx);
+        chunk.add(cz);
+        chunkList.add(chunk);
+      }
+    }
+    scene.add("chunkList", chunkList);
+    return scene;
+  }
+
+  /**
+   * Writes the region files of the world to <code>region/</code> in the given directory and the
+   * scene description to <code>scene.json</code> next to it.
+   *
+   * @param directory world directory
+   * @return the scene file
+   */
+  public File generate(File directory) throws IOException {
+    File regionDirectory = new File(directory, "region");
+    if (!regionDirectory.isDirectory() && !regionDirectory.mkdirs()) {
+      throw new IOException("Could not create region directory " + regionDirectory);
+    }
+    for (int rx = 0; rx <= (chunksX - 1) >> 5; rx++) {
+      for (int rz = 0; rz <= (chunksZ - 1) >> 5; rz++) {
+        File regionFile = new File(regionDirectory, "r." + rx + "." + rz + ".mca");
+        try (RegionFileWriter region = new RegionFileWriter(regionFile)) {
+          for (int cx = rx * 32; cx < Math.min(chunksX, rx * 32 + 32); cx++) {
+            for (int cz = rz * 32; cz < Math.min(chunksZ, rz * 32 + 32); cz++) {
+              AnvilChunk chunk = generateChunk(cx, cz);
+              if (chunk != null) {
+                region.writeChunk(cx & 31, cz & 31, chunk.toNbt());
+              }
+            }
+          }
+        }
+      }
+    }
+
+    File sceneFile = new File(directory, "scene.json");
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(sceneFile), "UTF-8")) {
+      out.write(createScene().toString());
+    }
+    return sceneFile;
+  }
+
+  /**
+   * Generates a chunk of the world.
+   *
+   * @param cx chunk x coordinate
+   * @param cz chunk z coordinate
+   * @return the chunk, or null if it is left empty
+   */
+  public AnvilChunk generateChunk(int cx, int cz) {
+    Random random = new Random(hash(seed, cx, cz));
+    if (random.nextDouble() < emptyChunkRatio) {
+      return null;
+    }
+
+    AnvilChunk chunk = new AnvilChunk(cx, cz);
+    int seaLevel = minHeight + (maxHeight - minHeight) / 3;
+    for (int x = 0; x < 16; x++) {
+      for (int z = 0; z < 16; z++) {
+        int height = getHeight(cx * 16 + x, cz * 16 + z);
+        chunk.setBlock(x, 0, z, "minecraft:bedrock");
+        for (int y = 1; y < height - 3; y++) {
+          chunk.setBlock(x, y, z, FILL_BLOCKS[random.nextInt(blockVariety)]);
+        }
+        boolean underwater = height < seaLevel;
+        for (int y = Math.max(1, height - 3); y < height; y++) {
+          chunk.setBlock(x, y, z, underwater ? "minecraft:sand" : "minecraft:dirt");
+        }
+        if (underwater) {
+          chunk.setBlock(x, height, z, "minecraft:sand");
+          for (int y = height + 1; y <= seaLevel; y++) {
+            chunk.setBlock(x, y, z, "minecraft:water");
+          }
+          continue;
+        }
+        chunk.setBlock(x, height, z, "minecraft:grass_block");
+
+        if (random.nextDouble() < emitterDensity) {
+          chunk.setBlock(x, height + 1, z, EMITTER_BLOCKS[random.nextInt(EMITTER_BLOCKS.length)]);
+        } else if (x >= 2 && x < 14 && z >= 2 && z < 14 && random.nextDouble() < treeDensity) {
+          // trees are kept inside of the chunk, so that every chunk can be generated on its own
+          placeTree(chunk, x, height + 1, z, 4 + random.nextInt(3));
+        }
+      }
+    }
+    return chunk;
+  }
+
+  private static void placeTree(AnvilChunk chunk, int x, int y, int z, int trunkHeight) {
+    for (int dy = trunkHeight - 2; dy <= trunkHeight + 1; dy++) {
+      int radius = dy > trunkHeight ? 1 : 2;
+      for (int dx = -radius; dx <= radius; dx++) {
+        for (int dz = -radius; dz <= radius; dz++) {
+          if (Math.abs(dx) + Math.abs(dz) < radius * 2) {
+            chunk.setBlock(x + dx, y + dy, z + dz, "minecraft:oak_leaves");
+          }
+        }
+      }
+    }
+    for (int dy = 0; dy < trunkHeight; dy++) {
+      chunk.setBlock(x, y + dy, z, "minecraft:oak_log");
+    }
+  }
+
+  /**
+   * Gets the terrain height at the given block position, interpolated between the points of a
+   * random height field.
+   */
+  private int getHeight(int x, int z) {
+    int gridX = Math.floorDiv(x, NOISE_SCALE);
+    int gridZ = Math.floorDiv(z, NOISE_SCALE);
+    double fx = smooth((x - gridX * NOISE_SCALE) / (double) NOISE_SCALE);
+    double fz = smooth((z - gridZ * NOISE_SCALE) / (double) NOISE_SCALE);
+    double top = lerp(noise(gridX, gridZ), noise(gridX + 1, gridZ), fx);
+    double bottom = lerp(noise(gridX, gridZ + 1), noise(gridX + 1, gridZ + 1), fx);
+    return minHeight + (int) Math.round(lerp(top, bottom, fz) * (maxHeight - minHeight));
+  }
+
+  private double noise(int gridX, int gridZ) {
+    return (hash(~seed, gridX, gridZ) >>> 11) / (double) (1L << 53);
+  }
+
+  private static double smooth(double t) {
+    return t * t * (3 - 2 * t);
+  }
+
+  private static double lerp(double a, double b, double t) {
+    return a + (b - a) * t;
+  }
+
+  private static long hash(long seed, int x, int z) {
+    long h = seed ^ (x * 0x9E3779B97F4A7C15L) ^ (z * 0xC2B2AE3D27D4EB4FL);
+    h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+    h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+    return h ^ (h >>> 31);
+  }
+
+  /**
+   * Generates a world from the command line.
+   */
+  public static void main(String[] args) throws IOException {
+    Cli<Arguments> cli = CliFactory.createCli(Arguments.class);
+    Arguments arguments;
+    try {
+      arguments = cli.parseArguments(args);
+    } catch (Exception e) {
+      System.out.println(cli.getHelpMessage());
+      return;
+    }
+
+    WorldGenerator generator = new WorldGenerator(arguments.getSeed());
+    generator.setSize(arguments.getChunksX(), arguments.getChunksZ());
+    generator.setBlockVariety(arguments.getBlockVariety());
+    generator.setHeightRange(arguments.getMinHeight(), arguments.getMaxHeight());
+    generator.setEmptyChunkRatio(arguments.getEmptyChunkRatio());
+    generator.setEmitterDensity(arguments.getEmitterDensity());
+    generator.setTreeDensity(arguments.getTreeDensity());
+    long start = System.nanoTime();
+    File scene = generator.generate(arguments.getOutput());
+    System.out.println(String.format("Generated %dx%d chunks in %d ms, scene: %s",
+        arguments.getChunksX(), arguments.getChunksZ(), (System.nanoTime() - start) / 1000000,
+        scene));
+  }
+
+  public interface Arguments {
+
+    @Option(longName = "output",
+        description = "directory to write the world to")
+    File getOutput();
+
+    @Option(longName = "seed",
+        description = "seed of the world",
+        defaultValue = "0")
+    long getSeed();
+
+    @Option(longName = "chunks-x",
+        description = "number of chunks in x direction",
+        defaultValue = "16")
+    int getChunksX();
+
+    @Option(longName = "chunks-z",
+        description = "number of chunks in z direction",
+        defaultValue = "16")
+    int getChunksZ();
+
+    @Option(longName = "block-variety",
+        description = "number of different blocks the terrain is filled with",
+        defaultValue = "8")
+    int getBlockVariety();
+
+    @Option(longName = "min-height",
+        description = "minimum terrain height",
+        defaultValue = "50")
+    int getMinHeight();
+
+    @Option(longName = "max-height",
+        description = "maximum terrain height",
+        defaultValue = "90")
+    int getMaxHeight();
+
+    @Option(longName = "empty-chunk-ratio",
+        description = "fraction of selected chunks that are missing from the region files",
+        defaultValue = "0")
+    double getEmptyChunkRatio();
+
+    @Option(longName = "emitter-density",
+        description = "probability of a light source on a block column",
+        defaultValue = "0.01")
+    double getEmitterDensity();
+
+    @Option(longName = "tree-density",
+        description = "probability of a tree on a block column",
+        defaultValue = "0.005")
+    double getTreeDensity();
+  }
+}
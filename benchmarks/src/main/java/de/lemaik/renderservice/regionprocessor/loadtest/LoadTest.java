@@ -0,0 +1,301 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.loadtest;
+
+import com.google.gson.JsonObject;
+import com.lexicalscope.jewel.cli.Cli;
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+import de.lemaik.renderservice.regionprocessor.Main;
+import de.lemaik.renderservice.regionprocessor.application.CommandlineArguments;
+import de.lemaik.renderservice.regionprocessor.application.HeadlessRenderer;
+import de.lemaik.renderservice.regionprocessor.application.RendererApplication;
+import de.lemaik.renderservice.regionprocessor.benchmarks.WorldGenerator;
+import de.lemaik.renderservice.regionprocessor.metrics.Histogram;
+import de.lemaik.renderservice.regionprocessor.metrics.NodeMetrics;
+import de.lemaik.renderservice.regionprocessor.metrics.NodeMetrics.Stage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Pushes synthetic assignments through a real node that talks to a {@link MockMasterServer} and
+ * a {@link LocalAmqpBroker}, and reports the throughput, the latency percentiles of the stages
+ * and the peak memory usage.
+ *
+ * <p>The node runs in this JVM, so the peak RSS includes the harness and the mock server. The
+ * stage latencies are estimated from the buckets of the node metrics.
+ */
+public class LoadTest {
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+  public static void main(String[] args) throws Exception {
+    Cli<Arguments> cli = CliFactory.createCli(Arguments.class);
+    Arguments arguments;
+    try {
+      arguments = cli.parseArguments(args);
+    } catch (Exception e) {
+      System.out.println(cli.getHelpMessage());
+      return;
+    }
+
+    File workDirectory = arguments.getWorkDirectory() != null
+        ? arguments.getWorkDirectory()
+        : Files.createTempDirectory("loadtest").toFile();
+    workDirectory.mkdirs();
+    System.out.println("Working directory: " + workDirectory);
+
+    List<File> worlds = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < arguments.getWorlds(); i++) {
+      WorldGenerator generator = new WorldGenerator(arguments.getSeed() + i);
+      generator.setSize(arguments.getChunks(), arguments.getChunks());
+      generator.setEmitterDensity(arguments.getEmitterDensity());
+      File world = new File(workDirectory, "world-" + i);
+      generator.generate(world);
+      worlds.add(world);
+    }
+    System.out.println(String.format("Generated %d worlds with %dx%d chunks in %d ms",
+        worlds.size(), arguments.getChunks(), arguments.getChunks(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+
+    File assetCacheDirectory = arguments.getAssetCacheDirectory();
+    if (assetCacheDirectory == null) {
+      // an empty client jar keeps the node from downloading Minecraft, blocks are untextured
+      assetCacheDirectory = new File(workDirectory, "assets");
+      createEmptyClientJar(new File(assetCacheDirectory, RendererApplication.TEXTURE_VERSION));
+    }
+
+    try (LocalAmqpBroker broker = new LocalAmqpBroker(0);
+        MockMasterServer master = new MockMasterServer(broker.getPort(), 8)) {
+      for (int i = 0; i < worlds.size(); i++) {
+        master.addWorld("world-" + i, worlds.get(i));
+      }
+      for (int i = 0; i < arguments.getAssignments(); i++) {
+        String jobId = String.format("loadtest-%06d", i);
+        master.addJob(jobId, "world-" + (i % worlds.size()));
+        JsonObject assignment = new JsonObject();
+        assignment.addProperty("jobId", jobId);
+        assignment.addProperty("spp", 0);
+        broker.publish(assignment.toString().getBytes(StandardCharsets.UTF_8));
+      }
+
+      System.setProperty("user.dir", workDirectory.getAbsolutePath());
+      List<String> nodeArgs = new ArrayList<>(Arrays.asList(
+          "--master", master.getUrl(),
+          "--api-key", "loadtest-api-key",
+          "--name", "loadtest",
+          "--job-path", new File(workDirectory, "jobs").getAbsolutePath(),
+          "--texturepacks-path", new File(workDirectory, "texturepacks").getAbsolutePath(),
+          "--cache-directory", new File(workDirectory, "cache").getAbsolutePath(),
+          "--asset-cache-directory", assetCacheDirectory.getAbsolutePath()));
+      if (arguments.getNodeOptions() != null && !arguments.getNodeOptions().trim().isEmpty()) {
+        nodeArgs.addAll(Arrays.asList(arguments.getNodeOptions().trim().split("\\s+")));
+      }
+      Cli<CommandlineArguments> nodeCli = CliFactory.createCli(CommandlineArguments.class);
+      CommandlineArguments nodeArguments = nodeCli
+          .parseArguments(nodeArgs.toArray(new String[0]));
+
+      long nodeStart = System.nanoTime();
+      RendererApplication node = new HeadlessRenderer(
+          Main.createSettings(nodeArguments, nodeArguments.getApiKey()));
+      node.start();
+
+      boolean completed = broker.awaitAcked(arguments.getAssignments(),
+          TimeUnit.MINUTES.toMillis(arguments.getTimeoutMinutes()));
+      long end = System.nanoTime();
+      List<LocalAmqpBroker.Message> acked = broker.getAcked();
+      if (!completed) {
+        System.out.println(String.format("Timed out, only %d of %d assignments were acked",
+            acked.size(), arguments.getAssignments()));
+      }
+
+      printReport(node.getMetrics(), broker, master, acked, nodeStart, end);
+      node.stop();
+    }
+    System.exit(0);
+  }
+
+  private static void printReport(NodeMetrics metrics, LocalAmqpBroker broker,
+      MockMasterServer master, List<LocalAmqpBroker.Message> acked, long nodeStart, long end) {
+    System.out.println();
+    if (acked.isEmpty()) {
+      System.out.println("No assignments were acked");
+    } else {
+      long firstDelivery = Long.MAX_VALUE;
+      List<Double> latencies = new ArrayList<>();
+      for (LocalAmqpBroker.Message message : acked) {
+        firstDelivery = Math.min(firstDelivery, message.getFirstDelivery());
+        latencies.add((message.getAcked() - message.getFirstDelivery()) / 1e9);
+      }
+      long lastAck = acked.get(acked.size() - 1).getAcked();
+      Collections.sort(latencies);
+
+      System.out.println(String.format("Startup:              %.1f s",
+          (firstDelivery - nodeStart) / 1e9));
+      System.out.println(String.format("Acked assignments:    %d in %.1f s",
+          acked.size(), (lastAck - firstDelivery) / 1e9));
+      System.out.println(String.format("Throughput:           %.1f assignments/h",
+          acked.size() * 3600e9 / Math.max(1, lastAck - firstDelivery)));
+      System.out.println(String.format("End-to-end latency:   p50 %.2f s, p90 %.2f s, p99 %.2f s",
+          percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99)));
+    }
+    System.out.println(String.format("Nacked assignments:   %d", broker.getNacked()));
+    System.out.println(String.format("Uploaded:             %.1f MB in %d uploads",
+        master.getUploadedBytes() / 1024.0 / 1024.0, master.getUploads()));
+    System.out.println(String.format("Total time:           %.1f s", (end - nodeStart) / 1e9));
+
+    System.out.println();
+    System.out.println("Stage latencies (estimated from the histogram buckets):");
+    printQuantiles("queue_wait", metrics.getQueueWait());
+    for (Stage stage : Stage.values()) {
+      printQuantiles(stage.getLabel(), metrics.getStageDuration(stage));
+    }
+
+    System.out.println();
+    long peakHeap = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peakHeap += pool.getPeakUsage().getUsed();
+      }
+    }
+    System.out.println(String.format("Peak heap:            %.1f MB", peakHeap / 1024.0 / 1024.0));
+    long peakRss = getPeakRss();
+    if (peakRss >= 0) {
+      System.out.println(String.format("Peak RSS:             %.1f MB", peakRss / 1024.0 / 1024.0));
+    }
+  }
+
+  private static void printQuantiles(String name, Histogram histogram) {
+    StringBuilder line = new StringBuilder(String.format("  %-16s n=%-6d", name,
+        histogram.getCount()));
+    for (double q : QUANTILES) {
+      line.append(String.format(" p%d %.2f s", Math.round(q * 100), histogram.quantile(q)));
+    }
+    System.out.println(line);
+  }
+
+  private static double percentile(List<Double> sortedValues, double q) {
+    int index = (int) Math.ceil(q * sortedValues.size()) - 1;
+    return sortedValues.get(Math.max(0, Math.min(sortedValues.size() - 1, index)));
+  }
+
+  /**
+   * Gets the peak resident set size of this process from <code>/proc/self/status</code>.
+   *
+   * @return peak RSS in bytes, or -1 if it is not available on this platform
+   */
+  private static long getPeakRss() {
+    try {
+      for (String line : Files.readAllLines(new File("/proc/self/status").toPath())) {
+        if (line.startsWith("VmHWM:")) {
+          return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // not on Linux
+    }
+    return -1;
+  }
+
+  /**
+   * Writes an empty <code>client.jar</code> and its checksum in the layout of the asset cache.
+   */
+  private static void createEmptyClientJar(File versionDirectory)
+      throws IOException, NoSuchAlgorithmException {
+    versionDirectory.mkdirs();
+    File jar = new File(versionDirectory, "client.jar");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+      out.putNextEntry(new ZipEntry("pack.mcmeta"));
+      out.write("{\"pack\":{\"pack_format\":7,\"description\":\"\"}}"
+          .getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+    }
+    byte[] hash = MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(jar.toPath()));
+    StringBuilder checksum = new StringBuilder();
+    for (byte b : hash) {
+      checksum.append(String.format("%02x", b));
+    }
+    Files.write(new File(versionDirectory, "client.jar.sha1").toPath(),
+        checksum.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  public interface Arguments {
+
+    @Option(longName = "assignments",
+        description = "number of assignments to process",
+        defaultValue = "20")
+    int getAssignments();
+
+    @Option(longName = "worlds",
+        description = "number of different worlds the assignments are distributed over",
+        defaultValue = "4")
+    int getWorlds();
+
+    @Option(longName = "chunks",
+        description = "number of chunks per side of each world",
+        defaultValue = "16")
+    int getChunks();
+
+    @Option(longName = "seed",
+        description = "seed of the first world",
+        defaultValue = "0")
+    long getSeed();
+
+    @Option(longName = "emitter-density",
+        description = "probability of a light source on a block column",
+        defaultValue = "0.01")
+    double getEmitterDensity();
+
+    @Option(longName = "work-directory",
+        description = "directory for the worlds and the node, a temporary directory by default",
+        defaultToNull = true)
+    File getWorkDirectory();
+
+    @Option(longName = "asset-cache-directory",
+        description = "asset cache with a Minecraft client jar, an empty jar is used by default",
+        defaultToNull = true)
+    File getAssetCacheDirectory();
+
+    @Option(longName = "timeout-minutes",
+        description = "maximum time to wait for the assignments",
+        defaultValue = "60")
+    int getTimeoutMinutes();
+
+    @Option(longName = "node-options",
+        description = "additional command line options of the node, e.g. \"--assignment-slots 2\"",
+        defaultToNull = true)
+    String getNodeOptions();
+  }
+}
@@ -0,0 +1,631 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A minimal in-process AMQP 0-9-1 broker with a single queue, as a stand-in for RabbitMQ in load
+ * tests. It implements what the node uses: connection and channel handshakes, heartbeats,
+ * <code>basic.qos</code> (prefetch count), <code>basic.consume</code>, <code>basic.deliver</code>,
+ * <code>basic.ack</code>, <code>basic.nack</code> and <code>basic.reject</code>. Messages are
+ * published directly with {@link #publish(byte[])}, the queue name and authentication are
+ * ignored. Unacknowledged messages are requeued when their channel is closed.
+ *
+ * <p>Like RabbitMQ, a prefetch count that is not global only applies to consumers that are started
+ * after it was set, while a global prefetch count applies to the whole channel right away.
+ */
+public class LocalAmqpBroker implements Closeable {
+
+  private static final Logger LOGGER = LogManager.getLogger(LocalAmqpBroker.class);
+  private static final int FRAME_METHOD = 1;
+  private static final int FRAME_HEADER = 2;
+  private static final int FRAME_BODY = 3;
+  private static final int FRAME_HEARTBEAT = 8;
+  private static final int FRAME_END = 0xCE;
+  private static final int FRAME_MAX = 131072;
+  private static final int CONNECTION = 10;
+  private static final int CHANNEL = 20;
+  private static final int BASIC = 60;
+
+  private final ServerSocket serverSocket;
+  private final ScheduledExecutorService heartbeats = Executors
+      .newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "amqp-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+      });
+  private final Deque<Message> ready = new ArrayDeque<>();
+  private final List<ChannelState> consumers = new ArrayList<>();
+  private final List<Message> acked = new ArrayList<>();
+  private final List<ClientConnection> connections = new ArrayList<>();
+  private int nextConsumer;
+  private long nacked;
+  private volatile boolean closed;
+
+  /**
+   * Starts a broker on the loopback interface.
+   *
+   * @param port port to listen on, or 0 for any free port
+   */
+  public LocalAmqpBroker(int port) throws IOException {
+    serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::accept, "amqp-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Adds a message to the end of the queue.
+   *
+   * @param body message body
+   */
+  public synchronized void publish(byte[] body) {
+    ready.add(new Message(body));
+    dispatch();
+  }
+
+  /**
+   * Waits until the given number of messages were acknowledged.
+   *
+   * @param count   number of messages
+   * @param timeout maximum time to wait, in milliseconds
+   * @return true if the messages were acknowledged, false if the timeout elapsed
+   */
+  public synchronized boolean awaitAcked(int count, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (acked.size() < count) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Gets the acknowledged messages, in the order they were acknowledged.
+   *
+   * @return acknowledged messages
+   */
+  public synchronized List<Message> getAcked() {
+    return new ArrayList<>(acked);
+  }
+
+  public synchronized long getNacked() {
+    return nacked;
+  }
+
+  /**
+   * Gets the number of messages that were delivered but not acknowledged yet, on all channels.
+   *
+   * @return number of unacknowledged messages
+   */
+  public synchronized int getUnacked() {
+    int unacked = 0;
+    for (ClientConnection connection : connections) {
+      for (ChannelState channel : connection.channels.values()) {
+        unacked += channel.unacked.size();
+      }
+    }
+    return unacked;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    serverSocket.close();
+    heartbeats.shutdownNow();
+    List<ClientConnection> open;
+    synchronized (this) {
+      open = new ArrayList<>(connections);
+    }
+    for (ClientConnection connection : open) {
+      connection.socket.close();
+    }
+  }
+
+  private void accept() {
+    while (!closed) {
+      try {
+        Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        ClientConnection connection = new ClientConnection(socket);
+        synchronized (this) {
+          connections.add(connection);
+        }
+        Thread thread = new Thread(connection::run, "amqp-connection");
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e) {
+        if (!closed) {
+          LOGGER.warn("Could not accept an AMQP connection", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Delivers ready messages to the consumers that have room for them, round-robin.
+   */
+  private synchronized void dispatch() {
+    while (!ready.isEmpty() && !consumers.isEmpty()) {
+      ChannelState consumer = null;
+      for (int i = 0; i < consumers.size(); i++) {
+        ChannelState candidate = consumers.get((nextConsumer + i) % consumers.size());
+        if (candidate.hasRoom()) {
+          consumer = candidate;
+          nextConsumer = (nextConsumer + i + 1) % consumers.size();
+          break;
+        }
+      }
+      if (consumer == null) {
+        return;
+      }
+
+      Message message = ready.poll();
+      long deliveryTag = consumer.nextDeliveryTag++;
+      consumer.unacked.put(deliveryTag, message);
+      if (message.firstDelivery == 0) {
+        message.firstDelivery = System.nanoTime();
+      }
+      try {
+        consumer.connection.sendDelivery(consumer, deliveryTag, message);
+        message.redelivered = true;
+      } catch (IOException e) {
+        LOGGER.warn("Could not deliver a message", e);
+        consumer.connection.closeQuietly();
+        return;
+      }
+    }
+  }
+
+  private synchronized void ack(ChannelState channel, long deliveryTag, boolean multiple) {
+    for (Message message : take(channel, deliveryTag, multiple)) {
+      message.acked = System.nanoTime();
+      acked.add(message);
+    }
+    notifyAll();
+    dispatch();
+  }
+
+  private synchronized void nack(ChannelState channel, long deliveryTag, boolean multiple,
+      boolean requeue) {
+    List<Message> messages = take(channel, deliveryTag, multiple);
+    nacked += messages.size();
+    if (requeue) {
+      Collections.reverse(messages);
+      for (Message message : messages) {
+        ready.addFirst(message);
+      }
+    }
+    dispatch();
+  }
+
+  private List<Message> take(ChannelState channel, long deliveryTag, boolean multiple) {
+    List<Message> messages = new ArrayList<>();
+    if (multiple) {
+      Iterator<Map.Entry<Long, Message>> unacked = channel.unacked.entrySet().iterator();
+      while (unacked.hasNext()) {
+        Map.Entry<Long, Message> entry = unacked.next();
+        if (entry.getKey() > deliveryTag) {
+          break;
+        }
+        messages.add(entry.getValue());
+        unacked.remove();
+      }
+    } else {
+      Message message = channel.unacked.remove(deliveryTag);
+      if (message != null) {
+        messages.add(message);
+      }
+    }
+    return messages;
+  }
+
+  private synchronized void closeChannel(ChannelState channel) {
+    consumers.remove(channel);
+    List<Message> unacked = new ArrayList<>(channel.unacked.values());
+    channel.unacked.clear();
+    Collections.reverse(unacked);
+    for (Message message : unacked) {
+      ready.addFirst(message);
+    }
+    dispatch();
+  }
+
+  /**
+   * A message in the queue.
+   */
+  public static class Message {
+
+    private final byte[] body;
+    private final long published = System.nanoTime();
+    private long firstDelivery;
+    private long acked;
+    private boolean redelivered;
+
+    Message(byte[] body) {
+      this.body = body;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    public long getPublished() {
+      return published;
+    }
+
+    public long getFirstDelivery() {
+      return firstDelivery;
+    }
+
+    public long getAcked() {
+      return acked;
+    }
+  }
+
+  private static class ChannelState {
+
+    private final ClientConnection connection;
+    private final int number;
+    private final TreeMap<Long, Message> unacked = new TreeMap<>();
+    private int prefetchCount;
+    private int consumerPrefetchCount;
+    private int globalPrefetchCount;
+    private String consumerTag;
+    private long nextDeliveryTag = 1;
+
+    ChannelState(ClientConnection connection, int number) {
+      this.connection = connection;
+      this.number = number;
+    }
+
+    boolean hasRoom() {
+      return (consumerPrefetchCount == 0 || unacked.size() < consumerPrefetchCount)
+          && (globalPrefetchCount == 0 || unacked.size() < globalPrefetchCount);
+    }
+  }
+
+  private class ClientConnection {
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final Map<Integer, ChannelState> channels = new HashMap<>();
+    private int frameMax = FRAME_MAX;
+
+    ClientConnection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.out = new DataOutputStream(socket.getOutputStream());
+    }
+
+    void run() {
+      try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
+        byte[] header = new byte[8];
+        in.readFully(header);
+        if (!new String(header, 0, 4, StandardCharsets.US_ASCII).equals("AMQP")) {
+          throw new IOException("Unsupported protocol");
+        }
+        sendMethod(0, CONNECTION, 10, args -> {
+          args.writeByte(0); // version-major
+          args.writeByte(9); // version-minor
+          args.writeInt(0); // server-properties
+          writeLongString(args, "PLAIN AMQPLAIN");
+          writeLongString(args, "en_US");
+        });
+
+        while (!socket.isClosed()) {
+          int type = in.readUnsignedByte();
+          int channel = in.readUnsignedShort();
+          byte[] payload = new byte[in.readInt()];
+          in.readFully(payload);
+          if (in.readUnsignedByte() != FRAME_END) {
+            throw new IOException("Invalid frame end");
+          }
+          if (type == FRAME_METHOD) {
+            handleMethod(channel, new DataInputStream(new java.io.ByteArrayInputStream(payload)));
+          } else if (type == FRAME_HEARTBEAT) {
+            sendHeartbeat();
+          }
+          // content frames are not expected, messages are only published in-process
+        }
+      } catch (EOFException e) {
+        // the client closed the connection
+      } catch (IOException e) {
+        if (!closed && !socket.isClosed()) {
+          LOGGER.warn("AMQP connection failed", e);
+        }
+      } finally {
+        closeQuietly();
+      }
+    }
+
+    private void handleMethod(int channel, DataInputStream args) throws IOException {
+      int classId = args.readUnsignedShort();
+      int methodId = args.readUnsignedShort();
+      switch (classId * 1000 + methodId) {
+        case CONNECTION * 1000 + 11: // start-ok
+          sendMethod(0, CONNECTION, 30, tune -> {
+            tune.writeShort(2047); // channel-max
+            tune.writeInt(FRAME_MAX);
+            tune.writeShort(0); // heartbeat, the client decides
+          });
+          break;
+        case CONNECTION * 1000 + 31: // tune-ok
+          args.readUnsignedShort();
+          int clientFrameMax = args.readInt();
+          int heartbeat = args.readUnsignedShort();
+          if (clientFrameMax > 0) {
+            frameMax = Math.min(FRAME_MAX, clientFrameMax);
+          }
+          if (heartbeat > 0) {
+            long interval = Math.max(1, heartbeat * 1000L / 2);
+            heartbeats.scheduleAtFixedRate(() -> {
+              try {
+                sendHeartbeat();
+              } catch (IOException e) {
+                throw new RuntimeException(e); // cancels the heartbeat
+              }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+          }
+          break;
+        case CONNECTION * 1000 + 40: // open
+          sendMethod(0, CONNECTION, 41, openOk -> writeShortString(openOk, ""));
+          break;
+        case CONNECTION * 1000 + 50: // close
+          sendMethod(0, CONNECTION, 51, closeOk -> {
+          });
+          closeQuietly();
+          break;
+        case CONNECTION * 1000 + 51: // close-ok
+          closeQuietly();
+          break;
+        case CHANNEL * 1000 + 10: // open
+          synchronized (LocalAmqpBroker.this) {
+            channels.put(channel, new ChannelState(this, channel));
+          }
+          sendMethod(channel, CHANNEL, 11, openOk -> openOk.writeInt(0));
+          break;
+        case CHANNEL * 1000 + 40: // close
+          removeChannel(channel);
+          sendMethod(channel, CHANNEL, 41, closeOk -> {
+          });
+          break;
+        case CHANNEL * 1000 + 41: // close-ok
+          removeChannel(channel);
+          break;
+        case BASIC * 1000 + 10: { // qos
+          args.readInt(); // prefetch-size
+          int prefetchCount = args.readUnsignedShort();
+          boolean global = (args.readUnsignedByte() & 1) != 0;
+          synchronized (LocalAmqpBroker.this) {
+            if (global) {
+              getChannel(channel).globalPrefetchCount = prefetchCount;
+            } else {
+              // only used by consumers that are started later
+              getChannel(channel).prefetchCount = prefetchCount;
+            }
+          }
+          sendMethod(channel, BASIC, 11, qosOk -> {
+          });
+          dispatch();
+          break;
+        }
+        case BASIC * 1000 + 20: { // consume
+          args.readUnsignedShort(); // reserved
+          readShortString(args); // queue
+          String tag = readShortString(args);
+          boolean noWait = (args.readUnsignedByte() & 8) != 0;
+          String consumerTag = tag.isEmpty() ? "amq.ctag-" + channel + "-" + System.nanoTime() : tag;
+          synchronized (LocalAmqpBroker.this) {
+            ChannelState state = getChannel(channel);
+            state.consumerTag = consumerTag;
+            state.consumerPrefetchCount = state.prefetchCount;
+            if (!noWait) {
+              sendMethod(channel, BASIC, 21, consumeOk -> writeShortString(consumeOk, consumerTag));
+            }
+            consumers.add(state);
+            dispatch();
+          }
+          break;
+        }
+        case BASIC * 1000 + 30: { // cancel
+          String consumerTag = readShortString(args);
+          boolean noWait = (args.readUnsignedByte() & 1) != 0;
+          synchronized (LocalAmqpBroker.this) {
+            consumers.remove(getChannel(channel));
+          }
+          if (!noWait) {
+            sendMethod(channel, BASIC, 31, cancelOk -> writeShortString(cancelOk, consumerTag));
+          }
+          break;
+        }
+        case BASIC * 1000 + 80: { // ack
+          long deliveryTag = args.readLong();
+          boolean multiple = (args.readUnsignedByte() & 1) != 0;
+          ack(getChannel(channel), deliveryTag, multiple);
+          break;
+        }
+        case BASIC * 1000 + 90: { // reject
+          long deliveryTag = args.readLong();
+          boolean requeue = (args.readUnsignedByte() & 1) != 0;
+          nack(getChannel(channel), deliveryTag, false, requeue);
+          break;
+        }
+        case BASIC * 1000 + 120: { // nack
+          long deliveryTag = args.readLong();
+          int bits = args.readUnsignedByte();
+          nack(getChannel(channel), deliveryTag, (bits & 1) != 0, (bits & 2) != 0);
+          break;
+        }
+        default:
+          LOGGER.warn("Ignoring unsupported AMQP method " + classId + "." + methodId);
+      }
+    }
+
+    private ChannelState getChannel(int channel) throws IOException {
+      synchronized (LocalAmqpBroker.this) {
+        ChannelState state = channels.get(channel);
+        if (state == null) {
+          throw new IOException("Channel " + channel + " is not open");
+        }
+        return state;
+      }
+    }
+
+    private void removeChannel(int channel) {
+      ChannelState state;
+      synchronized (LocalAmqpBroker.this) {
+        state = channels.remove(channel);
+      }
+      if (state != null) {
+        closeChannel(state);
+      }
+    }
+
+    void sendDelivery(ChannelState channel, long deliveryTag, Message message) throws IOException {
+      synchronized (out) {
+        sendMethod(channel.number, BASIC, 60, deliver -> {
+          writeShortString(deliver, channel.consumerTag);
+          deliver.writeLong(deliveryTag);
+          deliver.writeByte(message.redelivered ? 1 : 0);
+          writeShortString(deliver, ""); // exchange
+          writeShortString(deliver, "rs_prepare_241"); // routing key
+        });
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeShort(BASIC);
+        headerOut.writeShort(0); // weight
+        headerOut.writeLong(message.body.length);
+        headerOut.writeShort(0); // no properties
+        writeFrame(FRAME_HEADER, channel.number, header.toByteArray(), header.size());
+
+        int maxBodyFrame = frameMax - 8;
+        for (int offset = 0; offset < message.body.length; offset += maxBodyFrame) {
+          int length = Math.min(maxBodyFrame, message.body.length - offset);
+          byte[] body = new byte[length];
+          System.arraycopy(message.body, offset, body, 0, length);
+          writeFrame(FRAME_BODY, channel.number, body, length);
+        }
+        out.flush();
+      }
+    }
+
+    private void sendMethod(int channel, int classId, int methodId, ArgumentWriter writer)
+        throws IOException {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      DataOutputStream args = new DataOutputStream(payload);
+      args.writeShort(classId);
+      args.writeShort(methodId);
+      writer.write(args);
+      synchronized (out) {
+        writeFrame(FRAME_METHOD, channel, payload.toByteArray(), payload.size());
+        out.flush();
+      }
+    }
+
+    private void sendHeartbeat() throws IOException {
+      synchronized (out) {
+        writeFrame(FRAME_HEARTBEAT, 0, new byte[0], 0);
+        out.flush();
+      }
+    }
+
+    private void writeFrame(int type, int channel, byte[] payload, int length)
+        throws IOException {
+      synchronized (out) {
+        out.writeByte(type);
+        out.writeShort(channel);
+        out.writeInt(length);
+        out.write(payload, 0, length);
+        out.writeByte(FRAME_END);
+      }
+    }
+
+    void closeQuietly() {
+      List<ChannelState> open;
+      synchronized (LocalAmqpBroker.this) {
+        open = new ArrayList<>(channels.values());
+        channels.clear();
+        connections.remove(this);
+      }
+      for (ChannelState channel : open) {
+        closeChannel(channel);
+      }
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+  }
+
+  private interface ArgumentWriter {
+
+    void write(DataOutputStream args) throws IOException;
+  }
+
+  private static String readShortString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readUnsignedByte()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeShortString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeLongString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
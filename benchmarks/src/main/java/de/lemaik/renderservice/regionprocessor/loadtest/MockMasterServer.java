@@ -0,0 +1,236 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A local stand-in for the master server that serves jobs of generated worlds and accepts the
+ * uploaded scene files without storing them. Worlds are directories as written by {@link
+ * de.lemaik.renderservice.regionprocessor.benchmarks.WorldGenerator#generate(File)}.
+ */
+public class MockMasterServer implements Closeable {
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final int amqpPort;
+  private final Map<String, File> worlds = new ConcurrentHashMap<>();
+  private final Map<String, String> jobs = new ConcurrentHashMap<>();
+  private final AtomicLong uploadedBytes = new AtomicLong();
+  private final AtomicLong uploads = new AtomicLong();
+
+  /**
+   * Starts a server on any free port of the loopback interface.
+   *
+   * @param amqpPort port of the AMQP broker that is announced to the node
+   * @param threads  number of threads that handle requests
+   */
+  public MockMasterServer(int amqpPort, int threads) throws IOException {
+    this.amqpPort = amqpPort;
+    executor = Executors.newFixedThreadPool(threads);
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/", exchange -> {
+      try {
+        handle(exchange);
+      } catch (Exception e) {
+        send(exchange, 500, e.toString().getBytes(StandardCharsets.UTF_8), "text/plain");
+      } finally {
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  public String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * Adds a world that jobs can be created for.
+   *
+   * @param name      name of the world, used in the URLs of its region files
+   * @param directory directory with the <code>scene.json</code> and the <code>region/</code>
+   *                  directory of the world
+   */
+  public void addWorld(String name, File directory) {
+    worlds.put(name, directory);
+  }
+
+  /**
+   * Adds a job that renders a world.
+   *
+   * @param jobId id of the job
+   * @param world name of the world
+   */
+  public void addJob(String jobId, String world) {
+    jobs.put(jobId, world);
+  }
+
+  public long getUploadedBytes() {
+    return uploadedBytes.get();
+  }
+
+  public long getUploads() {
+    return uploads.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String[] path = exchange.getRequestURI().getPath().substring(1).split("/");
+
+    if (method.equals("GET") && path.length == 1 && path[0].equals("info")) {
+      JsonObject info = new JsonObject();
+      info.addProperty("version", 1);
+      info.addProperty("rabbitMq", "amqp://127.0.0.1:" + amqpPort);
+      JsonArray encodings = new JsonArray();
+      encodings.add("gzip");
+      info.add("uploadEncodings", encodings);
+      info.addProperty("fileReferences", true);
+      sendJson(exchange, info);
+    } else if (method.equals("GET") && path.length == 2 && path[0].equals("jobs")) {
+      String world = jobs.get(path[1]);
+      if (world == null) {
+        send(exchange, 404, "Job not found".getBytes(StandardCharsets.UTF_8), "text/plain");
+      } else {
+        sendJson(exchange, createJob(path[1], world));
+      }
+    } else if (method.equals("GET") && path.length == 3 && path[0].equals("jobs")
+        && path[2].equals("scene")) {
+      String world = jobs.get(path[1]);
+      if (world == null) {
+        send(exchange, 404, "Job not found".getBytes(StandardCharsets.UTF_8), "text/plain");
+      } else {
+        sendFile(exchange, new File(worlds.get(world), "scene.json"), "application/json");
+      }
+    } else if (method.equals("POST") && path.length == 3 && path[0].equals("jobs")
+        && path[2].equals("files")) {
+      long size = 0;
+      byte[] buffer = new byte[64 * 1024];
+      try (InputStream in = exchange.getRequestBody()) {
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+          size += read;
+        }
+      }
+      uploadedBytes.addAndGet(size);
+      uploads.incrementAndGet();
+      exchange.sendResponseHeaders(204, -1);
+    } else if (method.equals("GET") && path.length == 4 && path[0].equals("worlds")
+        && path[2].equals("region")) {
+      File world = worlds.get(path[1]);
+      File region = world == null ? null : new File(new File(world, "region"), path[3]);
+      if (region == null || !region.isFile()) {
+        send(exchange, 404, "File not found".getBytes(StandardCharsets.UTF_8), "text/plain");
+      } else {
+        sendFile(exchange, region, "application/octet-stream");
+      }
+    } else if (method.equals("GET") && path.length == 2 && path[0].equals("resourcepacks")) {
+      send(exchange, 200, createEmptyZip(), "application/zip");
+    } else if (method.equals("HEAD") && path.length == 2 && path[0].equals("files")) {
+      // the master never has the uploaded files, so that every upload is measured
+      exchange.sendResponseHeaders(404, -1);
+    } else {
+      send(exchange, 404, "Not found".getBytes(StandardCharsets.UTF_8), "text/plain");
+    }
+  }
+
+  private JsonObject createJob(String jobId, String world) {
+    JsonObject job = new JsonObject();
+    job.addProperty("_id", jobId);
+    job.addProperty("cancelled", false);
+    JsonArray files = new JsonArray();
+    JsonObject scene = new JsonObject();
+    scene.addProperty("type", "scene");
+    scene.addProperty("name", "scene.json");
+    scene.addProperty("url", "/jobs/" + jobId + "/scene");
+    files.add(scene);
+    File[] regions = new File(worlds.get(world), "region").listFiles();
+    if (regions != null) {
+      for (File region : regions) {
+        JsonObject file = new JsonObject();
+        file.addProperty("type", "region");
+        file.addProperty("name", region.getName());
+        file.addProperty("url", "/worlds/" + world + "/region/" + region.getName());
+        file.addProperty("size", region.length());
+        files.add(file);
+      }
+    }
+    job.add("files", files);
+    return job;
+  }
+
+  private static byte[] createEmptyZip() throws IOException {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(zip)) {
+      out.putNextEntry(new ZipEntry("pack.mcmeta"));
+      out.write("{\"pack\":{\"pack_format\":7,\"description\":\"\"}}"
+          .getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+    }
+    return zip.toByteArray();
+  }
+
+  private static void sendJson(HttpExchange exchange, JsonObject json) throws IOException {
+    send(exchange, 200, json.toString().getBytes(StandardCharsets.UTF_8), "application/json");
+  }
+
+  private static void sendFile(HttpExchange exchange, File file, String contentType)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(200, file.length());
+    try (OutputStream out = exchange.getResponseBody()) {
+      Files.copy(file.toPath(), out);
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status, byte[] body, String contentType)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
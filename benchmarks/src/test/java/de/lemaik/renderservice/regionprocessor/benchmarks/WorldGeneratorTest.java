@@ -0,0 +1,101 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.benchmarks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WorldGeneratorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void sameSeedGeneratesIdenticalFiles() throws IOException {
+    File first = generate(42, folder.newFolder("first"));
+    File second = generate(42, folder.newFolder("second"));
+
+    String[] regions = regionFiles(first);
+    assertTrue("the world spans multiple regions", regions.length > 1);
+    assertEquals(Arrays.asList(regions), Arrays.asList(regionFiles(second)));
+    for (String region : regions) {
+      assertArrayEquals(region, readRegion(first, region), readRegion(second, region));
+    }
+    assertArrayEquals(Files.readAllBytes(new File(first, "scene.json").toPath()),
+        Files.readAllBytes(new File(second, "scene.json").toPath()));
+  }
+
+  @Test
+  public void differentSeedsGenerateDifferentFiles() throws IOException {
+    File first = generate(1, folder.newFolder("first"));
+    File second = generate(2, folder.newFolder("second"));
+
+    String[] regions = regionFiles(first);
+    assertEquals(Arrays.asList(regions), Arrays.asList(regionFiles(second)));
+    boolean different = false;
+    for (String region : regions) {
+      different |= !Arrays.equals(readRegion(first, region), readRegion(second, region));
+    }
+    assertTrue(different);
+  }
+
+  @Test
+  public void chunkOrderDoesNotMatter() throws IOException {
+    WorldGenerator generator = new WorldGenerator(7);
+    generator.setSize(8, 8);
+    byte[] chunk = generator.generateChunk(3, 5).toNbt();
+    generator.generateChunk(0, 0);
+    generator.generateChunk(7, 2);
+    assertArrayEquals(chunk, generator.generateChunk(3, 5).toNbt());
+    assertFalse(Arrays.equals(chunk, generator.generateChunk(5, 3).toNbt()));
+  }
+
+  private static WorldGenerator createGenerator(long seed) {
+    WorldGenerator generator = new WorldGenerator(seed);
+    // 40 chunks span two regions in x direction
+    generator.setSize(40, 4);
+    generator.setEmptyChunkRatio(0.1);
+    return generator;
+  }
+
+  private static File generate(long seed, File directory) throws IOException {
+    createGenerator(seed).generate(directory);
+    return directory;
+  }
+
+  private static String[] regionFiles(File world) {
+    String[] regions = new File(world, "region").list();
+    Arrays.sort(regions);
+    return regions;
+  }
+
+  private static byte[] readRegion(File world, String region) throws IOException {
+    return Files.readAllBytes(new File(new File(world, "region"), region).toPath());
+  }
+}
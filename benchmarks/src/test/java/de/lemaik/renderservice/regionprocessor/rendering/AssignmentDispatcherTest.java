@@ -0,0 +1,132 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import de.lemaik.renderservice.regionprocessor.loadtest.LocalAmqpBroker;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the prefetch count of the dispatcher against the unacknowledged messages on the broker.
+ * The pipeline isn't started, so every delivered assignment stays on the node.
+ */
+public class AssignmentDispatcherTest {
+
+  private static final int CAPACITY = 8;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private LocalAmqpBroker broker;
+  private Connection connection;
+  private MemoryAdmission memoryAdmission;
+  private AssignmentDispatcher dispatcher;
+  private Thread waitingBuild;
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new LocalAmqpBroker(0);
+    ConnectionFactory factory = new ConnectionFactory();
+    factory.setHost("127.0.0.1");
+    factory.setPort(broker.getPort());
+    connection = factory.newConnection();
+
+    AssignmentPipeline pipeline = new AssignmentPipeline(1, 0, 1, 2, null);
+    assertEquals(CAPACITY, pipeline.getCapacity());
+    AssignmentContext context = new AssignmentContext(folder.newFolder("jobs").toPath(),
+        folder.newFolder("texturepacks").toPath(), null);
+    memoryAdmission = new MemoryAdmission(100, 1);
+    context.setMemoryAdmission(memoryAdmission);
+    dispatcher = new AssignmentDispatcher(pipeline, context);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (waitingBuild != null) {
+      waitingBuild.interrupt();
+    }
+    connection.close();
+    broker.close();
+  }
+
+  @Test
+  public void brokerDeliversUpToTheCapacity() throws Exception {
+    dispatcher.consume(connection.createChannel(), "rs_prepare_241");
+    publish(CAPACITY + 5);
+    awaitUnacked(CAPACITY);
+    Thread.sleep(500);
+    assertEquals(CAPACITY, broker.getUnacked());
+  }
+
+  @Test
+  public void prefetchCountIsLoweredOnTheBrokerWhileBuildsWaitForMemory() throws Exception {
+    dispatcher.consume(connection.createChannel(), "rs_prepare_241");
+    publish(2);
+    awaitUnacked(2);
+    Thread.sleep(500); // until the dispatcher handled the deliveries
+
+    // one build holds the whole budget, the next one waits for it
+    memoryAdmission.acquire(100);
+    waitingBuild = new Thread(() -> {
+      try {
+        memoryAdmission.acquire(1);
+      } catch (InterruptedException e) {
+        // test is over
+      }
+    });
+    waitingBuild.start();
+    while (!memoryAdmission.isWaiting()) {
+      Thread.sleep(10);
+    }
+
+    // the next delivery makes the dispatcher lower the prefetch count to the assignments it has
+    publish(1);
+    awaitUnacked(3);
+    Thread.sleep(500);
+    publish(5);
+    Thread.sleep(500);
+    assertEquals(3, broker.getUnacked());
+  }
+
+  private void publish(int count) {
+    for (int i = 0; i < count; i++) {
+      broker.publish(("{\"jobId\":\"job-" + System.nanoTime() + "\",\"spp\":0}")
+          .getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private void awaitUnacked(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (broker.getUnacked() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue("expected " + count + " unacked messages, got " + broker.getUnacked(),
+        broker.getUnacked() >= count);
+  }
+}
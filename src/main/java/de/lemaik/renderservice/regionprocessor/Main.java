@@ -62,6 +62,17 @@ public class Main {
       System.exit(-1);
     }
 
+    new HeadlessRenderer(createSettings(arguments, apiKey)).start();
+  }
+
+  /**
+   * Creates the renderer settings from the parsed command line arguments.
+   *
+   * @param arguments command line arguments
+   * @param apiKey    API key
+   * @return renderer settings
+   */
+  public static RendererSettings createSettings(CommandlineArguments arguments, String apiKey) {
     RendererSettings settings = new RendererSettings(
         arguments.getJobPath(),
         arguments.getTexturepacksPath(),
@@ -72,7 +83,31 @@ public class Main {
         arguments.getName(),
         apiKey
     );
-
-    new HeadlessRenderer(settings).start();
+    settings.setAssignmentSlots(arguments.getAssignmentSlots());
+    settings.setDownloadThreads(arguments.getDownloadThreads());
+    settings.setUploadThreads(arguments.getUploadThreads());
+    settings.setStageQueueSize(arguments.getStageQueueSize());
+    settings.setStreamOctree(arguments.isStreamOctree());
+    settings.setBufferPoolSize(arguments.getBufferPoolSize());
+    settings.setTexturepackCacheSize(arguments.getTexturepackCacheSize());
+    settings.setSkipWarmup(arguments.isSkipWarmup());
+    settings.setUploadCompression(arguments.getUploadCompression());
+    settings.setAssetCacheDirectory(arguments.getAssetCacheDirectory());
+    settings.setRegionCacheDirectory(arguments.getRegionCacheDirectory());
+    settings.setRegionCacheSize(arguments.getRegionCacheSize());
+    settings.setSceneDataCacheDirectory(arguments.getSceneDataCacheDirectory());
+    settings.setSceneDataCacheSize(arguments.getSceneDataCacheSize());
+    settings.setDownloadConnections(arguments.getDownloadConnections());
+    settings.setDownloadConnectionsPerHost(arguments.getDownloadConnectionsPerHost());
+    settings.setDownloadOrder(arguments.getDownloadOrder());
+    settings.setHttp1Only(arguments.isHttp1Only());
+    settings.setDownloadAttempts(arguments.getDownloadAttempts());
+    settings.setUploadRatePerUpload(arguments.isUploadRatePerUpload());
+    settings.setMetricsPort(arguments.getMetricsPort());
+    settings.setBuildHeapBudget(arguments.getBuildHeapBudget());
+    settings.setHeapPerChunk(arguments.getHeapPerChunk());
+    settings.setMemoryWorkspaceSize(arguments.getMemoryWorkspaceSize());
+    settings.setMemoryWorkspacePath(arguments.getMemoryWorkspacePath());
+    return settings;
   }
 }
@@ -41,6 +41,10 @@ public interface CommandlineArguments {
       defaultToNull = true)
   Integer getMaxUploadRate();
 
+  @Option(longName = "upload-rate-per-upload",
+      description = "apply the upload rate to each upload instead of all uploads together")
+  boolean isUploadRatePerUpload();
+
   @Option(longName = "master",
       description = "URL of the master server API endpoint",
       defaultValue = "https://api.chunkycloud.lemaik.de")
@@ -60,6 +64,124 @@ public interface CommandlineArguments {
       defaultToNull = true)
   String getName();
 
+  @Option(longName = "assignment-slots",
+      description = "number of octrees to generate concurrently",
+      defaultToNull = true)
+  Integer getAssignmentSlots();
+
+  @Option(longName = "download-threads",
+      description = "number of assignments to download concurrently",
+      defaultToNull = true)
+  Integer getDownloadThreads();
+
+  @Option(longName = "upload-threads",
+      description = "number of octrees to upload concurrently",
+      defaultToNull = true)
+  Integer getUploadThreads();
+
+  @Option(longName = "stage-queue-size",
+      description = "number of assignments that may wait in front of each processing stage",
+      defaultToNull = true)
+  Integer getStageQueueSize();
+
+  @Option(longName = "stream-octree",
+      description = "upload octrees while they are generated instead of buffering them")
+  boolean isStreamOctree();
+
+  @Option(longName = "buffer-pool-size",
+      description = "memory to keep for scene buffers between assignments, in mb",
+      defaultToNull = true)
+  Long getBufferPoolSize();
+
+  @Option(longName = "texturepack-cache-size",
+      description = "memory to keep recently used texturepacks loaded, in mb",
+      defaultToNull = true)
+  Long getTexturepackCacheSize();
+
+  @Option(longName = "upload-compression",
+      description = "upload compression if the master supports it: gzip, gzip:<level> or none "
+          + "(default gzip)",
+      defaultToNull = true)
+  String getUploadCompression();
+
+  @Option(longName = "asset-cache-directory",
+      description = "cache directory for the minecraft jar",
+      defaultToNull = true)
+  File getAssetCacheDirectory();
+
+  @Option(longName = "region-cache-directory",
+      description = "cache directory for region files",
+      defaultToNull = true)
+  File getRegionCacheDirectory();
+
+  @Option(longName = "region-cache-size",
+      description = "maximum region cache size, in mb (region files are only cached if this is set)",
+      defaultToNull = true)
+  Long getRegionCacheSize();
+
+  @Option(longName = "scene-data-cache-directory",
+      description = "cache directory for generated octrees",
+      defaultToNull = true)
+  File getSceneDataCacheDirectory();
+
+  @Option(longName = "scene-data-cache-size",
+      description = "maximum size of generated octrees to keep for redelivered jobs, in mb",
+      defaultToNull = true)
+  Long getSceneDataCacheSize();
+
+  @Option(longName = "download-connections",
+      description = "maximum number of concurrent file downloads",
+      defaultToNull = true)
+  Integer getDownloadConnections();
+
+  @Option(longName = "download-connections-per-host",
+      description = "maximum number of concurrent file downloads from the same host",
+      defaultToNull = true)
+  Integer getDownloadConnectionsPerHost();
+
+  @Option(longName = "download-order",
+      description = "order in which files are downloaded: loader-order or largest-first",
+      defaultValue = "loader-order")
+  String getDownloadOrder();
+
+  @Option(longName = "download-attempts",
+      description = "number of attempts per file download, interrupted downloads are resumed",
+      defaultToNull = true)
+  Integer getDownloadAttempts();
+
+  @Option(longName = "http1-only",
+      description = "use separate HTTP/1.1 connections instead of HTTP/2 for concurrent downloads")
+  boolean isHttp1Only();
+
+  @Option(longName = "skip-warmup",
+      description = "start consuming assignments without warming up chunky first")
+  boolean isSkipWarmup();
+
+  @Option(longName = "metrics-port",
+      description = "port of the prometheus metrics endpoint (disabled if not set)",
+      defaultToNull = true)
+  Integer getMetricsPort();
+
+  @Option(longName = "build-heap-budget",
+      description = "heap for all octree builds together, in MB (no admission control if not set)",
+      defaultToNull = true)
+  Long getBuildHeapBudget();
+
+  @Option(longName = "heap-per-chunk",
+      description = "estimated heap needed per chunk of an octree build, in KB (default 192)",
+      defaultToNull = true)
+  Long getHeapPerChunk();
+
+  @Option(longName = "memory-workspace-size",
+      description = "size of the memory-backed job directory for small assignments, in MB",
+      defaultToNull = true)
+  Long getMemoryWorkspaceSize();
+
+  @Option(longName = "memory-workspace-path",
+      description = "memory-backed job directory, e.g. on a tmpfs (default /dev/shm/rs_jobs)",
+      defaultToNull = true)
+  File getMemoryWorkspacePath();
+
   @Option(longName = "api-key",
       description = "API Key",
       defaultToNull = true)
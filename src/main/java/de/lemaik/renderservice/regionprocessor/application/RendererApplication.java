@@ -18,23 +18,36 @@
 
 package de.lemaik.renderservice.regionprocessor.application;
 
-import de.lemaik.renderservice.regionprocessor.chunky.ChunkyWrapper;
+import de.lemaik.renderservice.regionprocessor.chunky.ChunkyWarmup;
 import de.lemaik.renderservice.regionprocessor.chunky.ChunkyWrapperFactory;
 import de.lemaik.renderservice.regionprocessor.chunky.EmbeddedChunkyWrapper;
+import de.lemaik.renderservice.regionprocessor.metrics.MetricsServer;
+import de.lemaik.renderservice.regionprocessor.metrics.NodeMetrics;
+import de.lemaik.renderservice.regionprocessor.rendering.AssignmentContext;
+import de.lemaik.renderservice.regionprocessor.rendering.AssignmentPipeline;
+import de.lemaik.renderservice.regionprocessor.rendering.DownloadScheduler;
+import de.lemaik.renderservice.regionprocessor.rendering.MemoryAdmission;
+import de.lemaik.renderservice.regionprocessor.rendering.MemoryWorkspace;
+import de.lemaik.renderservice.regionprocessor.rendering.RegionCache;
 import de.lemaik.renderservice.regionprocessor.rendering.RenderServerApiClient;
 import de.lemaik.renderservice.regionprocessor.rendering.RenderServiceInfo;
 import de.lemaik.renderservice.regionprocessor.rendering.RenderWorker;
+import de.lemaik.renderservice.regionprocessor.rendering.SceneDataCache;
 import de.lemaik.renderservice.regionprocessor.util.MinecraftDownloader;
+import de.lemaik.renderservice.regionprocessor.util.SegmentPool;
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
-import okhttp3.Response;
-import okhttp3.ResponseBody;
-import okio.BufferedSink;
-import okio.Okio;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import se.llbit.chunky.PersistentSettings;
@@ -42,11 +55,13 @@ import se.llbit.chunky.PersistentSettings;
 public abstract class RendererApplication {
 
   private static final int VERSION = 3;
-  private static final String TEXTURE_VERSION = "1.17.1";
+  public static final String TEXTURE_VERSION = "1.17.1";
+  private static final int BUFFER_SEGMENT_SIZE = 1024 * 1024;
   private static final Logger LOGGER = LogManager.getLogger(RendererApplication.class);
 
   private final RenderServerApiClient api;
   private final RendererSettings settings;
+  private final NodeMetrics metrics;
   private Path jobDirectory;
   private Path texturepacksDirectory;
   private ChunkyWrapperFactory chunkyWrapperFactory;
@@ -54,53 +69,49 @@ public abstract class RendererApplication {
   private RenderWorker worker;
   private UUID id = UUID.randomUUID();
   private File texturepackPath;
+  private final Map<String, Long> startupPhases = Collections
+      .synchronizedMap(new LinkedHashMap<>());
 
   public RendererApplication(RendererSettings settings) {
     this.settings = settings;
+    this.metrics = new NodeMetrics();
+    DownloadScheduler.Order downloadOrder = DownloadScheduler.Order.LOADER_ORDER;
+    if (settings.getDownloadOrder().orElse("loader-order").equals("largest-first")) {
+      downloadOrder = DownloadScheduler.Order.LARGEST_FIRST;
+    }
     api = new RenderServerApiClient(
         settings.getMasterApiUrl(),
         settings.getApiKey(),
         settings.getCacheDirectory()
             .orElse(Paths.get(System.getProperty("user.dir"), "rs_cache").toFile()),
-        settings.getMaxCacheSize().orElse(500L) // 500 MB
+        settings.getMaxCacheSize().orElse(500L), // 500 MB
+        new DownloadScheduler(
+            Math.max(1, settings.getDownloadConnections().orElse(16)),
+            Math.max(1, settings.getDownloadConnectionsPerHost().orElse(8)),
+            downloadOrder),
+        settings.isHttp1Only()
     );
+    settings.getDownloadAttempts()
+        .ifPresent(attempts -> api.setDownloadAttempts(Math.max(1, attempts)));
+    settings.getMaxUploadRate().filter(rate -> rate > 0).ifPresent(rate -> {
+      api.setUploadRate(rate, !settings.isUploadRatePerUpload());
+      LOGGER.info("Uploads are limited to " + rate + " KB/s"
+          + (settings.isUploadRatePerUpload() ? " each" : " in total"));
+    });
   }
 
   public void start() {
-    RenderServiceInfo rsInfo;
-    try {
-      rsInfo = api.getInfo().get();
-    } catch (Exception e) {
-      LOGGER.error("Could not fetch render service info", e);
-      System.exit(-1);
-      return;
-    }
-
-    if (rsInfo.getVersion() > VERSION) {
-      LOGGER.error("Update required. The minimum required version is " + rsInfo.getVersion()
-          + ", your version is " + VERSION + ".");
-      System.exit(-42);
-      return;
-    }
+    long startTime = System.nanoTime();
 
-    try (Response response = MinecraftDownloader.downloadMinecraft(TEXTURE_VERSION).get()) {
-      texturepackPath = File.createTempFile("minecraft", ".jar");
-      LOGGER.info(
-          "Downloading Minecraft " + TEXTURE_VERSION + " to " + texturepackPath.getAbsolutePath());
-
-      try (
-          ResponseBody body = response.body();
-          BufferedSink sink = Okio.buffer(Okio.sink(texturepackPath))
-      ) {
-        sink.writeAll(body.source());
-      }
-    } catch (Exception e) {
-      LOGGER.error("Could not download assets", e);
-      System.exit(-1);
-      return;
-    }
-    LOGGER.info("Finished downloading");
+    // fetching the info and the assets runs while the local directories are set up
+    CompletableFuture<RenderServiceInfo> info = timed("info", api.getInfo());
+    File assetCacheDirectory = getSettings().getAssetCacheDirectory()
+        .orElse(Paths.get(System.getProperty("user.dir"), "rs_assets").toFile());
+    CompletableFuture<File> assets = timed("assets", CompletableFuture.supplyAsync(
+        () -> MinecraftDownloader.getMinecraftJar(TEXTURE_VERSION, assetCacheDirectory))
+        .thenCompose(jar -> jar));
 
+    long setupStart = System.nanoTime();
     if (getSettings().getJobPath().isPresent()) {
       jobDirectory = getSettings().getJobPath().get().toPath();
     } else {
@@ -123,12 +134,100 @@ public abstract class RendererApplication {
     }
     texturepacksDirectory.toFile().mkdirs();
 
+    SegmentPool bufferPool = new SegmentPool(BUFFER_SEGMENT_SIZE,
+        (int) (getSettings().getBufferPoolSize().orElse(256L) * 1024 * 1024
+            / BUFFER_SEGMENT_SIZE));
+    EmbeddedChunkyWrapper.getTexturepacks()
+        .setCacheSize(getSettings().getTexturepackCacheSize().orElse(128L) * 1024 * 1024);
     chunkyWrapperFactory = () -> {
-      ChunkyWrapper chunky = new EmbeddedChunkyWrapper();
+      EmbeddedChunkyWrapper chunky = new EmbeddedChunkyWrapper(bufferPool);
       chunky.setDefaultTexturepack(texturepackPath);
+      chunky.setHashOutput(api.isFileReferencesEnabled());
       return chunky;
     };
 
+    AssignmentContext context = new AssignmentContext(jobDirectory, texturepacksDirectory, api);
+    context.setStreamOctree(getSettings().isStreamOctree());
+    context.setMetrics(metrics);
+    api.setMetrics(metrics);
+    if (getSettings().getBuildHeapBudget().isPresent()) {
+      MemoryAdmission memoryAdmission = new MemoryAdmission(
+          getSettings().getBuildHeapBudget().get() * 1024 * 1024,
+          getSettings().getHeapPerChunk().orElse(192L) * 1024);
+      context.setMemoryAdmission(memoryAdmission);
+      LOGGER.info("Octree builds may use up to " + memoryAdmission.getBudget() / 1024 / 1024
+          + " MB of heap");
+    }
+    if (getSettings().getMemoryWorkspaceSize().isPresent()) {
+      try {
+        MemoryWorkspace memoryWorkspace = new MemoryWorkspace(
+            getSettings().getMemoryWorkspacePath().orElse(new File("/dev/shm/rs_jobs")).toPath(),
+            getSettings().getMemoryWorkspaceSize().get() * 1024 * 1024);
+        context.setMemoryWorkspace(memoryWorkspace);
+        LOGGER.info("Small assignments are processed in " + memoryWorkspace.getDirectory());
+      } catch (IOException e) {
+        LOGGER.error("Could not open the memory workspace, all assignments use the disk", e);
+      }
+    }
+    if (getSettings().getMetricsPort().isPresent()) {
+      int port = getSettings().getMetricsPort().get();
+      try {
+        new MetricsServer(port, metrics).start();
+        LOGGER.info("Metrics are available at http://localhost:" + port + "/metrics");
+      } catch (IOException e) {
+        LOGGER.error("Could not start the metrics server on port " + port, e);
+      }
+    }
+    File regionCacheDirectory = getSettings().getRegionCacheDirectory()
+        .orElse(Paths.get(System.getProperty("user.dir"), "rs_region_cache").toFile());
+    if (getSettings().getRegionCacheSize().isPresent()) {
+      try {
+        context.setRegionCache(new RegionCache(regionCacheDirectory,
+            getSettings().getRegionCacheSize().get() * 1024 * 1024, api));
+      } catch (IOException e) {
+        LOGGER.error("Could not open the region cache, region files won't be cached", e);
+      }
+    }
+    if (context.getRegionCache().isPresent() && context.getMemoryWorkspace().isPresent()
+        && !context.getMemoryWorkspace().get().isSameFileSystem(regionCacheDirectory.toPath())) {
+      LOGGER.info("The region cache can't be linked into the memory workspace, regions of "
+          + "assignments in memory are not cached");
+      context.setRegionCacheInMemoryWorkspace(false);
+    }
+    if (getSettings().getSceneDataCacheSize().isPresent()) {
+      File sceneDataCacheDirectory = getSettings().getSceneDataCacheDirectory()
+          .orElse(Paths.get(System.getProperty("user.dir"), "rs_scene_cache").toFile());
+      try {
+        context.setSceneDataCache(new SceneDataCache(sceneDataCacheDirectory,
+            getSettings().getSceneDataCacheSize().get() * 1024 * 1024, bufferPool));
+      } catch (IOException e) {
+        LOGGER.error("Could not open the scene data cache, octrees won't be cached", e);
+      }
+    }
+    startupPhases.put("setup", System.nanoTime() - setupStart);
+
+    RenderServiceInfo rsInfo;
+    try {
+      rsInfo = info.get();
+    } catch (Exception e) {
+      LOGGER.error("Could not fetch render service info", e);
+      System.exit(-1);
+      return;
+    }
+
+    if (rsInfo.getVersion() > VERSION) {
+      LOGGER.error("Update required. The minimum required version is " + rsInfo.getVersion()
+          + ", your version is " + VERSION + ".");
+      System.exit(-42);
+      return;
+    }
+
+    configureUploadCompression(rsInfo);
+    if (rsInfo.isFileReferences()) {
+      api.enableFileReferences();
+      LOGGER.info("Scene files that the master already has won't be uploaded again");
+    }
+
     // Construct the proper queue url with username and password from the api key
     // (username is the first 8 characters of the api key)
     URI queueUri;
@@ -143,11 +242,90 @@ public abstract class RendererApplication {
       return;
     }
 
-    worker = new RenderWorker(queueUri.toString(), getSettings().getName().orElse(null),
-        jobDirectory, texturepacksDirectory, chunkyWrapperFactory, api);
+    try {
+      texturepackPath = assets.get();
+    } catch (Exception e) {
+      LOGGER.error("Could not download assets", e);
+      System.exit(-1);
+      return;
+    }
+
+    AssignmentPipeline pipeline = new AssignmentPipeline(
+        Math.max(1, getSettings().getDownloadThreads().orElse(1)),
+        Math.max(1, getSettings().getAssignmentSlots().orElse(1)),
+        Math.max(1, getSettings().getUploadThreads().orElse(1)),
+        Math.max(1, getSettings().getStageQueueSize().orElse(1)),
+        chunkyWrapperFactory);
+    LOGGER.info("Processing up to " + pipeline.getCapacity() + " assignments concurrently");
+
+    // the worker connects to RabbitMQ during the warm-up, but only consumes assignments after it
+    CompletableFuture<Void> warmup;
+    if (getSettings().isSkipWarmup()) {
+      warmup = CompletableFuture.completedFuture(null);
+    } else {
+      warmup = timed("warm-up", CompletableFuture.runAsync(() -> {
+        try {
+          ChunkyWarmup.run(chunkyWrapperFactory.getChunkyInstance(),
+              jobDirectory.resolve("warmup-" + UUID.randomUUID()).toFile());
+        } catch (IOException e) {
+          throw new CompletionException(e);
+        }
+      }));
+    }
+    worker = new RenderWorker(queueUri.toString(), getSettings().getName().orElse(null), context,
+        pipeline);
+    worker.setReadiness(warmup.whenComplete((result, e) -> LOGGER.info(String.format(
+        "Ready after %d ms (%s)",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), formatStartupPhases()))));
     worker.start();
   }
 
+  private <T> CompletableFuture<T> timed(String phase, CompletableFuture<T> future) {
+    long start = System.nanoTime();
+    return future.whenComplete((result, e) -> startupPhases.put(phase, System.nanoTime() - start));
+  }
+
+  private String formatStartupPhases() {
+    StringBuilder phases = new StringBuilder();
+    synchronized (startupPhases) {
+      for (Map.Entry<String, Long> phase : startupPhases.entrySet()) {
+        if (phases.length() > 0) {
+          phases.append(", ");
+        }
+        phases.append(phase.getKey()).append(": ")
+            .append(TimeUnit.NANOSECONDS.toMillis(phase.getValue())).append(" ms");
+      }
+    }
+    return phases.toString();
+  }
+
+  private void configureUploadCompression(RenderServiceInfo rsInfo) {
+    String compression = getSettings().getUploadCompression().orElse("gzip");
+    if (compression.equals("none")) {
+      return;
+    }
+    if (!compression.equals("gzip") && !compression.startsWith("gzip:")) {
+      LOGGER.warn("Unknown upload compression " + compression + ", uploads won't be compressed");
+      return;
+    }
+    if (!rsInfo.getUploadEncodings().contains("gzip")) {
+      LOGGER.info("The master doesn't accept compressed uploads, uploads won't be compressed");
+      return;
+    }
+
+    int level = 6;
+    if (compression.startsWith("gzip:")) {
+      try {
+        level = Math.max(1, Math.min(9, Integer.parseInt(compression.substring(5))));
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Invalid compression level in " + compression + ", using " + level);
+      }
+    }
+    int threads = Runtime.getRuntime().availableProcessors();
+    api.enableUploadCompression(level, threads);
+    LOGGER.info("Uploads are gzip-compressed (level " + level + ", " + threads + " threads)");
+  }
+
   public UUID getId() {
     return id;
   }
@@ -156,6 +334,10 @@ public abstract class RendererApplication {
     return settings;
   }
 
+  public NodeMetrics getMetrics() {
+    return metrics;
+  }
+
   public void stop() {
     try {
       LOGGER.info("Waiting for worker to stop...");
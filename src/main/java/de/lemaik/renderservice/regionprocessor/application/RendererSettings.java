@@ -34,6 +34,31 @@ public class RendererSettings {
   private Long maxCacheSize;
   private String name;
   private final String apiKey;
+  private Integer assignmentSlots;
+  private Integer downloadThreads;
+  private Integer uploadThreads;
+  private Integer stageQueueSize;
+  private boolean streamOctree;
+  private Long bufferPoolSize;
+  private Long texturepackCacheSize;
+  private boolean skipWarmup;
+  private String uploadCompression;
+  private File assetCacheDirectory;
+  private File regionCacheDirectory;
+  private Long regionCacheSize;
+  private File sceneDataCacheDirectory;
+  private Long sceneDataCacheSize;
+  private Integer downloadConnections;
+  private Integer downloadConnectionsPerHost;
+  private String downloadOrder;
+  private boolean http1Only;
+  private Integer downloadAttempts;
+  private boolean uploadRatePerUpload;
+  private Integer metricsPort;
+  private Long buildHeapBudget;
+  private Long heapPerChunk;
+  private Long memoryWorkspaceSize;
+  private File memoryWorkspacePath;
 
   public RendererSettings(File jobPath, File texturepacksPath, Integer maxUploadRate,
       String masterApiUrl, File cacheDirectory, Long maxCacheSize,
@@ -79,4 +104,204 @@ public class RendererSettings {
   public String getApiKey() {
     return apiKey;
   }
+
+  public Optional<Integer> getAssignmentSlots() {
+    return Optional.ofNullable(assignmentSlots);
+  }
+
+  public void setAssignmentSlots(Integer assignmentSlots) {
+    this.assignmentSlots = assignmentSlots;
+  }
+
+  public Optional<Integer> getDownloadThreads() {
+    return Optional.ofNullable(downloadThreads);
+  }
+
+  public void setDownloadThreads(Integer downloadThreads) {
+    this.downloadThreads = downloadThreads;
+  }
+
+  public Optional<Integer> getUploadThreads() {
+    return Optional.ofNullable(uploadThreads);
+  }
+
+  public void setUploadThreads(Integer uploadThreads) {
+    this.uploadThreads = uploadThreads;
+  }
+
+  public Optional<Integer> getStageQueueSize() {
+    return Optional.ofNullable(stageQueueSize);
+  }
+
+  public void setStageQueueSize(Integer stageQueueSize) {
+    this.stageQueueSize = stageQueueSize;
+  }
+
+  public boolean isStreamOctree() {
+    return streamOctree;
+  }
+
+  public void setStreamOctree(boolean streamOctree) {
+    this.streamOctree = streamOctree;
+  }
+
+  public Optional<Long> getBufferPoolSize() {
+    return Optional.ofNullable(bufferPoolSize);
+  }
+
+  public void setBufferPoolSize(Long bufferPoolSize) {
+    this.bufferPoolSize = bufferPoolSize;
+  }
+
+  public Optional<Long> getTexturepackCacheSize() {
+    return Optional.ofNullable(texturepackCacheSize);
+  }
+
+  public void setTexturepackCacheSize(Long texturepackCacheSize) {
+    this.texturepackCacheSize = texturepackCacheSize;
+  }
+
+  public boolean isSkipWarmup() {
+    return skipWarmup;
+  }
+
+  public void setSkipWarmup(boolean skipWarmup) {
+    this.skipWarmup = skipWarmup;
+  }
+
+  public Optional<String> getUploadCompression() {
+    return Optional.ofNullable(uploadCompression);
+  }
+
+  public void setUploadCompression(String uploadCompression) {
+    this.uploadCompression = uploadCompression;
+  }
+
+  public Optional<File> getAssetCacheDirectory() {
+    return Optional.ofNullable(assetCacheDirectory);
+  }
+
+  public void setAssetCacheDirectory(File assetCacheDirectory) {
+    this.assetCacheDirectory = assetCacheDirectory;
+  }
+
+  public Optional<File> getRegionCacheDirectory() {
+    return Optional.ofNullable(regionCacheDirectory);
+  }
+
+  public void setRegionCacheDirectory(File regionCacheDirectory) {
+    this.regionCacheDirectory = regionCacheDirectory;
+  }
+
+  public Optional<Long> getRegionCacheSize() {
+    return Optional.ofNullable(regionCacheSize);
+  }
+
+  public void setRegionCacheSize(Long regionCacheSize) {
+    this.regionCacheSize = regionCacheSize;
+  }
+
+  public Optional<File> getSceneDataCacheDirectory() {
+    return Optional.ofNullable(sceneDataCacheDirectory);
+  }
+
+  public void setSceneDataCacheDirectory(File sceneDataCacheDirectory) {
+    this.sceneDataCacheDirectory = sceneDataCacheDirectory;
+  }
+
+  public Optional<Long> getSceneDataCacheSize() {
+    return Optional.ofNullable(sceneDataCacheSize);
+  }
+
+  public void setSceneDataCacheSize(Long sceneDataCacheSize) {
+    this.sceneDataCacheSize = sceneDataCacheSize;
+  }
+
+  public Optional<Integer> getDownloadConnections() {
+    return Optional.ofNullable(downloadConnections);
+  }
+
+  public void setDownloadConnections(Integer downloadConnections) {
+    this.downloadConnections = downloadConnections;
+  }
+
+  public Optional<Integer> getDownloadConnectionsPerHost() {
+    return Optional.ofNullable(downloadConnectionsPerHost);
+  }
+
+  public void setDownloadConnectionsPerHost(Integer downloadConnectionsPerHost) {
+    this.downloadConnectionsPerHost = downloadConnectionsPerHost;
+  }
+
+  public Optional<String> getDownloadOrder() {
+    return Optional.ofNullable(downloadOrder);
+  }
+
+  public void setDownloadOrder(String downloadOrder) {
+    this.downloadOrder = downloadOrder;
+  }
+
+  public boolean isHttp1Only() {
+    return http1Only;
+  }
+
+  public void setHttp1Only(boolean http1Only) {
+    this.http1Only = http1Only;
+  }
+
+  public Optional<Integer> getDownloadAttempts() {
+    return Optional.ofNullable(downloadAttempts);
+  }
+
+  public void setDownloadAttempts(Integer downloadAttempts) {
+    this.downloadAttempts = downloadAttempts;
+  }
+
+  public boolean isUploadRatePerUpload() {
+    return uploadRatePerUpload;
+  }
+
+  public void setUploadRatePerUpload(boolean uploadRatePerUpload) {
+    this.uploadRatePerUpload = uploadRatePerUpload;
+  }
+
+  public Optional<Integer> getMetricsPort() {
+    return Optional.ofNullable(metricsPort);
+  }
+
+  public void setMetricsPort(Integer metricsPort) {
+    this.metricsPort = metricsPort;
+  }
+
+  public Optional<Long> getBuildHeapBudget() {
+    return Optional.ofNullable(buildHeapBudget);
+  }
+
+  public void setBuildHeapBudget(Long buildHeapBudget) {
+    this.buildHeapBudget = buildHeapBudget;
+  }
+
+  public Optional<Long> getHeapPerChunk() {
+    return Optional.ofNullable(heapPerChunk);
+  }
+
+  public void setHeapPerChunk(Long heapPerChunk) {
+    this.heapPerChunk = heapPerChunk;
+  }
+
+  public Optional<Long> getMemoryWorkspaceSize() {
+    return Optional.ofNullable(memoryWorkspaceSize);
+  }
+
+  public void setMemoryWorkspaceSize(Long memoryWorkspaceSize) {
+    this.memoryWorkspaceSize = memoryWorkspaceSize;
+  }
+
+  public Optional<File> getMemoryWorkspacePath() {
+    return Optional.ofNullable(memoryWorkspacePath);
+  }
+
+  public void setMemoryWorkspacePath(File memoryWorkspacePath) {
+    this.memoryWorkspacePath = memoryWorkspacePath;
+  }
 }
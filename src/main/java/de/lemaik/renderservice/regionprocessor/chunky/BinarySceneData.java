@@ -1,20 +1,81 @@
 package de.lemaik.renderservice.regionprocessor.chunky;
 
-public class BinarySceneData {
+import de.lemaik.renderservice.regionprocessor.util.SegmentedBuffer;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
 
-  private final byte[] octree;
-  private final byte[] emittergrid;
+/**
+ * The binary files of a scene. The data is kept in pooled buffers that are released when this
+ * object is closed.
+ */
+public class BinarySceneData implements Closeable {
 
-  public BinarySceneData(byte[] octree, byte[] emittergrid) {
+  private final SegmentedBuffer octree;
+  private final SegmentedBuffer emittergrid;
+
+  public BinarySceneData(SegmentedBuffer octree, SegmentedBuffer emittergrid) {
     this.octree = octree;
     this.emittergrid = emittergrid;
   }
 
-  public byte[] getOctree() {
-    return octree;
+  public boolean hasOctree() {
+    return octree != null;
+  }
+
+  public long getOctreeSize() {
+    return octree != null ? octree.size() : 0;
+  }
+
+  public List<ByteBuffer> getOctreeSegments() {
+    return octree != null ? octree.getSegments() : Collections.emptyList();
+  }
+
+  public InputStream getOctree() {
+    return octree.inputStream();
+  }
+
+  /**
+   * Gets the SHA-256 hash of the octree, if it was computed while the octree was written.
+   *
+   * @return hex-encoded SHA-256 hash of the octree, or null if it is not known
+   */
+  public String getOctreeSha256() {
+    return octree != null ? octree.getSha256() : null;
+  }
+
+  public boolean hasEmittergrid() {
+    return emittergrid != null;
+  }
+
+  public long getEmittergridSize() {
+    return emittergrid != null ? emittergrid.size() : 0;
+  }
+
+  public List<ByteBuffer> getEmittergridSegments() {
+    return emittergrid != null ? emittergrid.getSegments() : Collections.emptyList();
+  }
+
+  public InputStream getEmittergrid() {
+    return emittergrid.inputStream();
+  }
+
+  public String getEmittergridSha256() {
+    return emittergrid != null ? emittergrid.getSha256() : null;
   }
 
-  public byte[] getEmittergrid() {
-    return emittergrid;
+  /**
+   * Returns the buffers to their pool.
+   */
+  @Override
+  public void close() {
+    if (octree != null) {
+      octree.release();
+    }
+    if (emittergrid != null) {
+      emittergrid.release();
+    }
   }
 }
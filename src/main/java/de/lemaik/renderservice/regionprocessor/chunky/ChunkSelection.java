@@ -0,0 +1,170 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.chunky;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The chunks that are selected in a scene description. Used to skip region files that contain no
+ * selected chunks and to drop selected chunks that don't exist in the world.
+ */
+public class ChunkSelection {
+
+  private static final Pattern REGION_FILE_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+
+  private final Set<Long> chunks = new LinkedHashSet<>();
+  // selected chunks grouped by region, so that a region file only visits its own chunks
+  private final Map<Long, List<Long>> chunksByRegion = new HashMap<>();
+
+  private ChunkSelection() {
+  }
+
+  /**
+   * Reads the chunk selection from the chunk list of a scene description.
+   *
+   * @param scene scene description
+   * @return the selected chunks
+   */
+  public static ChunkSelection fromScene(JsonObject scene) {
+    ChunkSelection selection = new ChunkSelection();
+    JsonArray chunkList = scene.getAsJsonArray("chunkList");
+    if (chunkList != null) {
+      for (JsonElement chunk : chunkList) {
+        JsonArray position = chunk.getAsJsonArray();
+        int x = position.get(0).getAsInt();
+        int z = position.get(1).getAsInt();
+        long key = key(x, z);
+        if (selection.chunks.add(key)) {
+          selection.chunksByRegion.computeIfAbsent(key(x >> 5, z >> 5), region -> new ArrayList<>())
+              .add(key);
+        }
+      }
+    }
+    return selection;
+  }
+
+  /**
+   * Gets the number of selected chunks.
+   *
+   * @return number of selected chunks
+   */
+  public int size() {
+    return chunks.size();
+  }
+
+  /**
+   * Checks if a region file is needed for this selection. Files that are not named like region
+   * files are always needed.
+   *
+   * @param fileName name of the file
+   * @return true if the file is needed
+   */
+  public boolean needsFile(String fileName) {
+    int[] region = parseRegionFileName(fileName);
+    return region == null || chunksByRegion.containsKey(key(region[0], region[1]));
+  }
+
+  /**
+   * Removes the selected chunks of a region that are not present in its region file, according
+   * to the location table in the file header.
+   *
+   * @param regionFile region file
+   * @return number of chunks that were removed from the selection
+   * @throws IOException if the region file can't be read
+   */
+  public int retainPresentChunks(File regionFile) throws IOException {
+    int[] region = parseRegionFileName(regionFile.getName());
+    if (region == null) {
+      return 0;
+    }
+    List<Long> regionChunks = chunksByRegion.get(key(region[0], region[1]));
+    if (regionChunks == null) {
+      return 0;
+    }
+
+    int[] locations = new int[1024];
+    if (regionFile.length() >= 4096) {
+      try (DataInputStream in = new DataInputStream(new FileInputStream(regionFile))) {
+        for (int i = 0; i < locations.length; i++) {
+          locations[i] = in.readInt();
+        }
+      } catch (EOFException e) {
+        throw new IOException("Truncated region file " + regionFile, e);
+      }
+    }
+
+    int removed = 0;
+    List<Long> present = new ArrayList<>(regionChunks.size());
+    for (long chunk : regionChunks) {
+      int x = (int) (chunk >> 32);
+      int z = (int) chunk;
+      if (locations[(x & 31) + (z & 31) * 32] == 0) {
+        chunks.remove(chunk);
+        removed++;
+      } else {
+        present.add(chunk);
+      }
+    }
+    chunksByRegion.put(key(region[0], region[1]), present);
+    return removed;
+  }
+
+  /**
+   * Replaces the chunk list of the given scene description with this selection.
+   *
+   * @param scene scene description
+   */
+  public void writeTo(JsonObject scene) {
+    JsonArray chunkList = new JsonArray();
+    for (long chunk : chunks) {
+      JsonArray position = new JsonArray();
+      position.add((int) (chunk >> 32));
+      position.add((int) chunk);
+      chunkList.add(position);
+    }
+    scene.add("chunkList", chunkList);
+  }
+
+  private static int[] parseRegionFileName(String fileName) {
+    Matcher matcher = REGION_FILE_NAME.matcher(fileName);
+    if (!matcher.matches()) {
+      return null;
+    }
+    return new int[]{Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))};
+  }
+
+  private static long key(int x, int z) {
+    return ((long) x << 32) | (z & 0xffffffffL);
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.chunky;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import de.lemaik.renderservice.regionprocessor.util.AnvilChunk;
+import de.lemaik.renderservice.regionprocessor.util.FileUtil;
+import de.lemaik.renderservice.regionprocessor.util.RegionFileWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Generates the octree of a tiny synthetic world so that the default texturepack is loaded and
+ * the class loading and JIT compilation of the octree generation happens before the first
+ * assignment.
+ */
+public class ChunkyWarmup {
+
+  private static final Logger LOGGER = LogManager.getLogger(ChunkyWarmup.class);
+  private static final int SIZE = 2; // chunks in each direction
+
+  private ChunkyWarmup() {
+  }
+
+  /**
+   * Runs the warm-up.
+   *
+   * @param chunky    chunky instance to use, with the default texturepack set
+   * @param directory directory for the synthetic world, deleted afterwards
+   * @throws IOException if generating the octree fails
+   */
+  public static void run(ChunkyWrapper chunky, File directory) throws IOException {
+    try {
+      File regionDirectory = new File(directory, "region");
+      regionDirectory.mkdirs();
+      try (RegionFileWriter region = new RegionFileWriter(new File(regionDirectory, "r.0.0.mca"))) {
+        for (int cx = 0; cx < SIZE; cx++) {
+          for (int cz = 0; cz < SIZE; cz++) {
+            region.writeChunk(cx, cz, createChunk(cx, cz).toNbt());
+          }
+        }
+      }
+
+      JsonObject scene = new JsonObject();
+      scene.addProperty("sdfVersion", 9);
+      scene.addProperty("name", "scene");
+      JsonObject world = new JsonObject();
+      world.addProperty("path", "");
+      world.addProperty("dimension", 0);
+      scene.add("world", world);
+      JsonArray chunkList = new JsonArray();
+      for (int cx = 0; cx < SIZE; cx++) {
+        for (int cz = 0; cz < SIZE; cz++) {
+          JsonArray chunk = new JsonArray();
+          chunk.add(cx);
+          chunk.add(cz);
+          chunkList.add(chunk);
+        }
+      }
+      scene.add("chunkList", chunkList);
+      File sceneFile = new File(directory, "scene.json");
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(sceneFile), "UTF-8")) {
+        out.write(scene.toString());
+      }
+
+      try (BinarySceneData data = chunky.generateOctree(sceneFile, directory, 0, null)) {
+        LOGGER.info(String.format("Warm-up octree generated (%d bytes)", data.getOctreeSize()));
+      }
+    } finally {
+      FileUtil.deleteDirectory(directory);
+    }
+  }
+
+  private static AnvilChunk createChunk(int cx, int cz) {
+    AnvilChunk chunk = new AnvilChunk(cx, cz);
+    for (int x = 0; x < 16; x++) {
+      for (int z = 0; z < 16; z++) {
+        chunk.setBlock(x, 0, z, "minecraft:bedrock");
+        for (int y = 1; y < 60; y++) {
+          chunk.setBlock(x, y, z, "minecraft:stone");
+        }
+        chunk.setBlock(x, 60, z, "minecraft:dirt");
+        chunk.setBlock(x, 61, z, "minecraft:grass_block");
+        if ((x + z) % 7 == 0) {
+          chunk.setBlock(x, 62, z, "minecraft:torch");
+        } else if ((x * z) % 5 == 1) {
+          chunk.setBlock(x, 62, z, "minecraft:oak_planks");
+        }
+      }
+    }
+    chunk.setBlock(8, 30, 8, "minecraft:glowstone");
+    chunk.setBlock(3, 20, 12, "minecraft:water");
+    return chunk;
+  }
+}
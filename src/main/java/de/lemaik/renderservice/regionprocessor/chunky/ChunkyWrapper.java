@@ -19,8 +19,10 @@
 
 package de.lemaik.renderservice.regionprocessor.chunky;
 
+import com.google.gson.JsonObject;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * A wrapper for chunky.
@@ -64,4 +66,25 @@ public interface ChunkyWrapper {
 
   BinarySceneData generateOctree(File scene, File worldDirectory, int dimension, File texturepack)
       throws IOException;
+
+  /**
+   * Generates the octree and writes it to the given stream while it is being serialized, instead
+   * of buffering it. The stream is closed once the octree is written.
+   *
+   * @param octreeStream stream to write the octree to
+   * @return the scene data, without the octree
+   */
+  BinarySceneData generateOctree(File scene, File worldDirectory, int dimension, File texturepack,
+      OutputStream octreeStream) throws IOException;
+
+  /**
+   * Generates the octree of a scene description that is already in memory, so that it doesn't
+   * need to be written to a file first. The world directory is used as the scene directory.
+   *
+   * @param scene        scene description
+   * @param octreeStream stream to write the octree to, or null to buffer it
+   * @return the scene data, without the octree if it was streamed
+   */
+  BinarySceneData generateOctree(JsonObject scene, File worldDirectory, int dimension,
+      File texturepack, OutputStream octreeStream) throws IOException;
 }
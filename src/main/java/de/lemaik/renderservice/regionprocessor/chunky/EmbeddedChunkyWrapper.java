@@ -1,61 +1,130 @@
 package de.lemaik.renderservice.regionprocessor.chunky;
 
+import com.google.gson.JsonObject;
+import de.lemaik.renderservice.regionprocessor.metrics.AssignmentProfile;
+import de.lemaik.renderservice.regionprocessor.metrics.ThreadUsage;
+import de.lemaik.renderservice.regionprocessor.util.SegmentPool;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import se.llbit.chunky.renderer.DefaultRenderManager;
 import se.llbit.chunky.renderer.RenderManager;
 import se.llbit.chunky.renderer.scene.SynchronousSceneManager;
-import se.llbit.chunky.resources.TexturePackLoader;
 import se.llbit.util.ProgressListener;
 import se.llbit.util.TaskTracker;
 
 public class EmbeddedChunkyWrapper implements ChunkyWrapper {
 
-  private final FileBufferRenderContext context = new FileBufferRenderContext();
+  /**
+   * All chunky instances share their texturepacks statically.
+   */
+  private static final TexturepackLock TEXTUREPACKS = new TexturepackLock(0);
+
+  private static final Logger LOGGER = LogManager.getLogger(EmbeddedChunkyWrapper.class);
+
+  private final SegmentPool bufferPool;
+  private final FileBufferRenderContext context;
   private File defaultTexturepack;
-  private File previousTexturepack;
+
+  /**
+   * Gets the lock that guards the texturepacks of all chunky instances.
+   *
+   * @return texturepack lock
+   */
+  public static TexturepackLock getTexturepacks() {
+    return TEXTUREPACKS;
+  }
+
+  public EmbeddedChunkyWrapper(SegmentPool bufferPool) {
+    this.bufferPool = bufferPool;
+    context = new FileBufferRenderContext(bufferPool);
+  }
 
   @Override
   public BinarySceneData generateOctree(File scene, File worldDirectory, int dimension,
       File texturepack)
       throws IOException {
+    return generateOctree(scene, worldDirectory, dimension, texturepack, null);
+  }
+
+  @Override
+  public BinarySceneData generateOctree(File scene, File worldDirectory, int dimension,
+      File texturepack, OutputStream octreeStream)
+      throws IOException {
+    return generateOctree(Files.readAllBytes(scene.toPath()), scene.getParentFile(),
+        worldDirectory, dimension, texturepack, octreeStream);
+  }
+
+  @Override
+  public BinarySceneData generateOctree(JsonObject scene, File worldDirectory, int dimension,
+      File texturepack, OutputStream octreeStream) throws IOException {
+    return generateOctree(scene.toString().getBytes(StandardCharsets.UTF_8), worldDirectory,
+        worldDirectory, dimension, texturepack, octreeStream);
+  }
+
+  private BinarySceneData generateOctree(byte[] scene, File sceneDirectory, File worldDirectory,
+      int dimension, File texturepack, OutputStream octreeStream) throws IOException {
     if (texturepack == null) {
       texturepack = defaultTexturepack;
     }
 
-    // all chunky instances share their texturepacks statically
-    if (!texturepack.equals(previousTexturepack)) {
-      if (texturepack.equals(defaultTexturepack)) {
-        TexturePackLoader
-            .loadTexturePacks(new String[]{defaultTexturepack.getAbsolutePath()}, false);
-      } else {
-        // load the selected texturepack and the default texturepack as fallback
-        TexturePackLoader.loadTexturePacks(
-            new String[]{texturepack.getAbsolutePath(), defaultTexturepack.getAbsolutePath()},
-            false);
-      }
-      previousTexturepack = texturepack;
+    ThreadUsage start = ThreadUsage.start();
+    try {
+      TEXTUREPACKS.acquire(texturepack, defaultTexturepack);
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while waiting for the texturepack", e);
     }
+    try {
+      return generateOctree(scene, sceneDirectory, worldDirectory, dimension, octreeStream,
+          start.stop("octree_textures", AssignmentProfile.current()));
+    } finally {
+      TEXTUREPACKS.release();
+    }
+  }
 
+  /**
+   * Generates the octree and logs the usage of its phases: waiting for and loading the textures,
+   * loading the chunks and saving the scene.
+   */
+  private BinarySceneData generateOctree(byte[] scene, File sceneDirectory, File worldDirectory,
+      int dimension, OutputStream octreeStream, ThreadUsage textures) throws IOException {
+    context.clear();
+    context.setOctreeOutputStream(octreeStream);
     context.setRenderThreadCount(1);
     RenderManager renderer = new DefaultRenderManager(context, true);
     renderer.setCPULoad(100);
 
     SynchronousSceneManager sceneManager = new SynchronousSceneManager(context, renderer);
-    context.setSceneDirectory(scene.getParentFile());
-    sceneManager.getScene().loadDescription(new FileInputStream(scene));
+    context.setSceneDirectory(sceneDirectory);
+    try (InputStream description = new ByteArrayInputStream(scene)) {
+      sceneManager.getScene().loadDescription(description);
+    }
     sceneManager.getScene().yClipMin = 0;
     sceneManager.getScene().yClipMax = 256;
 
+    ThreadUsage start = ThreadUsage.start();
     sceneManager.getScene().loadChunks(TaskTracker.NONE,
         new UnlockedWorld(worldDirectory, dimension),
         new HashSet<>(sceneManager.getScene().getChunks()));
+    ThreadUsage chunks = start.stop("octree_chunks", AssignmentProfile.current());
 
+    start = ThreadUsage.start();
     sceneManager.getScene().saveScene(context, new TaskTracker(ProgressListener.NONE));
-    return new BinarySceneData(context.getOctree(), context.getEmittergrid());
+    BinarySceneData data = context.takeSceneData();
+    ThreadUsage save = start.stop("octree_save", AssignmentProfile.current());
+    LOGGER.info(String.format("Octree saved (%d MB), scene buffers: %s",
+        data.getOctreeSize() / 1024 / 1024, bufferPool));
+    LOGGER.info(String.format("Octree phases: textures %s, chunks %s, save %s", textures, chunks,
+        save));
+    return data;
   }
 
   @Override
@@ -83,6 +152,16 @@ public class EmbeddedChunkyWrapper implements ChunkyWrapper {
 
   }
 
+  /**
+   * Makes the SHA-256 hashes of the generated scene files get computed while they are written, so
+   * that uploads of files that the master already has can be skipped.
+   *
+   * @param hashOutput true to hash the scene files
+   */
+  public void setHashOutput(boolean hashOutput) {
+    context.setHashOutput(hashOutput);
+  }
+
   @Override
   public void setDefaultTexturepack(File texturepackPath) {
     this.defaultTexturepack = texturepackPath;
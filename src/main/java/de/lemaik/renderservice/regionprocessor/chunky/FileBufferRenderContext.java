@@ -1,7 +1,8 @@
 package de.lemaik.renderservice.regionprocessor.chunky;
 
 
-import java.io.ByteArrayOutputStream;
+import de.lemaik.renderservice.regionprocessor.util.SegmentPool;
+import de.lemaik.renderservice.regionprocessor.util.SegmentedBuffer;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -10,24 +11,37 @@ import se.llbit.chunky.main.ChunkyOptions;
 import se.llbit.chunky.renderer.RenderContext;
 
 /**
- * A mocked {@link RenderContext} for Chunky that saves scene files into buffers. Only supports
- * saving scenes.
+ * A mocked {@link RenderContext} for Chunky that saves scene files into pooled buffers. Only
+ * supports saving scenes.
  */
 public class FileBufferRenderContext extends RenderContext {
 
-  private ByteArrayOutputStream octree;
-  private ByteArrayOutputStream emittergrid;
+  private final SegmentPool pool;
+  private SegmentedBuffer octree;
+  private SegmentedBuffer emittergrid;
+  private OutputStream octreeStream;
+  private boolean hashOutput;
 
-  public FileBufferRenderContext() {
+  public FileBufferRenderContext(SegmentPool pool) {
     super(new Chunky(ChunkyOptions.getDefaults()));
+    this.pool = pool;
   }
 
   @Override
   public OutputStream getSceneFileOutputStream(String fileName) throws FileNotFoundException {
     if (fileName.endsWith(".octree") || fileName.endsWith(".octree2")) {
-      return octree = new ByteArrayOutputStream();
+      if (octreeStream != null) {
+        return octreeStream;
+      }
+      if (octree != null) {
+        octree.release();
+      }
+      return octree = new SegmentedBuffer(pool, hashOutput);
     } else if (fileName.endsWith(".emittergrid")) {
-      return emittergrid = new ByteArrayOutputStream();
+      if (emittergrid != null) {
+        emittergrid.release();
+      }
+      return emittergrid = new SegmentedBuffer(pool, hashOutput);
     }
 
     return new OutputStream() {
@@ -38,12 +52,45 @@ public class FileBufferRenderContext extends RenderContext {
     };
   }
 
-  public byte[] getOctree() {
-    return octree.toByteArray();
+  /**
+   * Makes the octree get written to the given stream instead of a buffer. The stream is closed by
+   * Chunky once the octree is written.
+   *
+   * @param octreeStream stream to write the octree to, or null to buffer it
+   */
+  public void setOctreeOutputStream(OutputStream octreeStream) {
+    this.octreeStream = octreeStream;
+  }
+
+  /**
+   * Makes the SHA-256 hashes of the buffered scene files get computed while they are written.
+   *
+   * @param hashOutput true to hash the scene files
+   */
+  public void setHashOutput(boolean hashOutput) {
+    this.hashOutput = hashOutput;
+  }
+
+  /**
+   * Releases the buffers of the previously saved scene, if they were not taken with {@link
+   * #takeSceneData()}.
+   */
+  public void clear() {
+    takeSceneData().close();
+    octreeStream = null;
   }
 
-  public byte[] getEmittergrid() {
-    return emittergrid != null ? emittergrid.toByteArray() : null;
+  /**
+   * Takes the buffers of the saved scene. The caller is responsible for closing the returned scene
+   * data.
+   *
+   * @return the saved scene data
+   */
+  public BinarySceneData takeSceneData() {
+    BinarySceneData data = new BinarySceneData(octree, emittergrid);
+    octree = null;
+    emittergrid = null;
+    return data;
   }
 
   public void setRenderThreadCount(int threads) {
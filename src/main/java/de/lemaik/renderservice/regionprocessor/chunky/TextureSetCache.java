@@ -0,0 +1,187 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.chunky;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import se.llbit.chunky.resources.BitmapImage;
+import se.llbit.chunky.resources.Texture;
+
+/**
+ * A bounded LRU cache of loaded texture sets. Chunky keeps all textures in static {@link Texture}
+ * fields, so a texture set is a snapshot of their bitmaps that can be swapped back in without
+ * decoding the texturepacks again. Not thread-safe, it is only used by {@link TexturepackLock}.
+ */
+public class TextureSetCache {
+
+  private static final List<Texture> TEXTURES = findTextures();
+
+  private final LinkedHashMap<String, TextureSet> sets = new LinkedHashMap<>(16, 0.75f, true);
+  private long maxSize;
+  private long size;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Creates a new texture set cache.
+   *
+   * @param maxSize maximum size of all cached texture sets, in bytes
+   */
+  public TextureSetCache(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Loads the cached texture set with the given key into chunky's textures.
+   *
+   * @param key texture set key
+   * @return true if the texture set was cached and restored, false if it needs to be loaded
+   */
+  public boolean restore(String key) {
+    TextureSet set = sets.get(key);
+    if (set == null) {
+      misses++;
+      return false;
+    }
+    hits++;
+    for (int i = 0; i < TEXTURES.size(); i++) {
+      TEXTURES.get(i).setTexture(set.bitmaps[i]);
+    }
+    return true;
+  }
+
+  /**
+   * Adds the texture set that is currently loaded into chunky's textures to the cache, evicting
+   * the least recently used texture sets if the cache gets too large.
+   *
+   * @param key texture set key
+   */
+  public void store(String key) {
+    TextureSet set = new TextureSet();
+    set.bitmaps = new BitmapImage[TEXTURES.size()];
+    Set<BitmapImage> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (int i = 0; i < TEXTURES.size(); i++) {
+      BitmapImage bitmap = TEXTURES.get(i).getBitmap();
+      set.bitmaps[i] = bitmap;
+      if (bitmap != null && distinct.add(bitmap)) {
+        set.size += bitmap.data.length * 4L;
+      }
+    }
+
+    TextureSet previous = sets.put(key, set);
+    if (previous != null) {
+      size -= previous.size;
+    }
+    size += set.size;
+    evict();
+  }
+
+  /**
+   * Sets the maximum size of all cached texture sets.
+   *
+   * @param maxSize maximum size, in bytes
+   */
+  public void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    evict();
+  }
+
+  private void evict() {
+    Iterator<TextureSet> lru = sets.values().iterator();
+    while (size > maxSize && lru.hasNext()) {
+      size -= lru.next().size;
+      lru.remove();
+      evictions++;
+    }
+  }
+
+  public int getCount() {
+    return sets.size();
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public String toString() {
+    long requests = hits + misses;
+    return String.format(
+        "%d texture sets (%d of %d mb), %d hits, %d misses (%.0f%% hit rate), %d evictions",
+        sets.size(), size / 1024 / 1024, maxSize / 1024 / 1024, hits, misses,
+        requests > 0 ? hits * 100.0 / requests : 0.0, evictions);
+  }
+
+  private static List<Texture> findTextures() {
+    Set<Texture> textures = Collections.newSetFromMap(new IdentityHashMap<>());
+    List<Texture> result = new ArrayList<>();
+    for (Field field : Texture.class.getFields()) {
+      if (!Modifier.isStatic(field.getModifiers())) {
+        continue;
+      }
+      try {
+        Object value = field.get(null);
+        if (value instanceof Texture) {
+          if (textures.add((Texture) value)) {
+            result.add((Texture) value);
+          }
+        } else if (value instanceof Texture[]) {
+          for (Texture texture : (Texture[]) value) {
+            if (texture != null && textures.add(texture)) {
+              result.add(texture);
+            }
+          }
+        }
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException("Could not access texture " + field.getName(), e);
+      }
+    }
+    return result;
+  }
+
+  private static class TextureSet {
+
+    private BitmapImage[] bitmaps;
+    private long size;
+  }
+}
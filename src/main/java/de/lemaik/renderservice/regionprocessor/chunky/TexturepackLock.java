@@ -0,0 +1,122 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.chunky;
+
+import java.io.File;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import se.llbit.chunky.resources.TexturePackLoader;
+
+/**
+ * Guards the texturepacks that all Chunky instances share statically. Any number of octrees can be
+ * generated at the same time as long as they use the same texturepack. Switching to a different
+ * texturepack waits until all of them are done and blocks new users of the current texturepack
+ * in the meantime, so that a switch can't be starved. Recently used texturepacks are kept in a
+ * {@link TextureSetCache} so that switching back to them doesn't need to decode them again.
+ */
+public class TexturepackLock {
+
+  private static final Logger LOGGER = LogManager.getLogger(TexturepackLock.class);
+
+  private final TextureSetCache cache;
+  private File activeTexturepack;
+  private int users;
+  private int pendingSwitches;
+
+  /**
+   * Creates a new texturepack lock.
+   *
+   * @param cacheSize maximum size of the cached texture sets, in bytes
+   */
+  public TexturepackLock(long cacheSize) {
+    cache = new TextureSetCache(cacheSize);
+  }
+
+  /**
+   * Waits until the given texturepack is loaded and registers the caller as a user of it. Every
+   * call must be followed by a call to {@link #release()}.
+   *
+   * @param texturepack        texturepack to use
+   * @param defaultTexturepack default texturepack, used as fallback for missing textures
+   * @throws InterruptedException if interrupted while waiting for other users to finish
+   */
+  public synchronized void acquire(File texturepack, File defaultTexturepack)
+      throws InterruptedException {
+    if (texturepack.equals(activeTexturepack) && pendingSwitches == 0) {
+      users++;
+      return;
+    }
+
+    pendingSwitches++;
+    try {
+      while (users > 0) {
+        wait();
+      }
+    } finally {
+      pendingSwitches--;
+    }
+
+    if (!texturepack.equals(activeTexturepack)) {
+      activeTexturepack = null;
+      String key = texturepack.getAbsolutePath() + File.pathSeparator + defaultTexturepack
+          .getAbsolutePath();
+      if (!cache.restore(key)) {
+        if (texturepack.equals(defaultTexturepack)) {
+          TexturePackLoader
+              .loadTexturePacks(new String[]{defaultTexturepack.getAbsolutePath()}, false);
+        } else {
+          // load the selected texturepack and the default texturepack as fallback
+          TexturePackLoader.loadTexturePacks(
+              new String[]{texturepack.getAbsolutePath(), defaultTexturepack.getAbsolutePath()},
+              false);
+        }
+        cache.store(key);
+      }
+      LOGGER.info("Texturepack cache: " + cache);
+      activeTexturepack = texturepack;
+    }
+    users++;
+  }
+
+  /**
+   * Unregisters a user of the currently loaded texturepack.
+   */
+  public synchronized void release() {
+    users--;
+    notifyAll();
+  }
+
+  /**
+   * Sets the maximum size of the cached texture sets.
+   *
+   * @param cacheSize maximum size, in bytes
+   */
+  public synchronized void setCacheSize(long cacheSize) {
+    cache.setMaxSize(cacheSize);
+  }
+
+  /**
+   * Gets the cache of recently used texture sets. Synchronize on this lock to read it.
+   *
+   * @return texture set cache
+   */
+  public TextureSetCache getCache() {
+    return cache;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.metrics;
+
+import de.lemaik.renderservice.regionprocessor.metrics.NodeMetrics.Result;
+import de.lemaik.renderservice.regionprocessor.metrics.NodeMetrics.Stage;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The stages of a single assignment, with their wall time, CPU time and allocations, summarized
+ * in one log line when the assignment leaves the node.
+ */
+public class AssignmentProfile {
+
+  private static final ThreadLocal<AssignmentProfile> CURRENT = new ThreadLocal<>();
+
+  private final Map<Stage, ThreadUsage> stages = new EnumMap<>(Stage.class);
+  private String jobId;
+  private int regions;
+  private long regionBytes;
+  private long octreeBytes;
+
+  /**
+   * Records a stage. Stages that are recorded multiple times are added up.
+   *
+   * @param stage stage
+   * @param usage usage of the thread that ran the stage
+   */
+  public synchronized void record(Stage stage, ThreadUsage usage) {
+    stages.merge(stage, usage, ThreadUsage::plus);
+  }
+
+  /**
+   * Gets the assignment that the current thread works on, so that code that doesn't know about
+   * assignments, e.g. the octree generation, can record its phases for it.
+   *
+   * @return the assignment of the current thread, or null if it has none
+   */
+  public static AssignmentProfile current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Sets this assignment as the one the current thread works on, until {@link #exit()} is called.
+   */
+  public void enter() {
+    CURRENT.set(this);
+  }
+
+  public void exit() {
+    CURRENT.remove();
+  }
+
+  public synchronized String getJobId() {
+    return jobId;
+  }
+
+  public synchronized void setJobId(String jobId) {
+    this.jobId = jobId;
+  }
+
+  public synchronized int getRegions() {
+    return regions;
+  }
+
+  public synchronized long getRegionBytes() {
+    return regionBytes;
+  }
+
+  public synchronized long getOctreeBytes() {
+    return octreeBytes;
+  }
+
+  /**
+   * Sets the downloaded regions.
+   *
+   * @param regions     number of region files
+   * @param regionBytes total size of the region files
+   */
+  public synchronized void setRegions(int regions, long regionBytes) {
+    this.regions = regions;
+    this.regionBytes = regionBytes;
+  }
+
+  public synchronized void setOctreeBytes(long octreeBytes) {
+    this.octreeBytes = octreeBytes;
+  }
+
+  /**
+   * Creates the summary line of this assignment.
+   *
+   * @param result how the assignment left the node
+   * @return summary line
+   */
+  public synchronized String summarize(Result result) {
+    StringBuilder summary = new StringBuilder();
+    summary.append(String.format("Job %s %s: %d regions (%d MB), %d MB octree", jobId,
+        result.getLabel(), regions, regionBytes / 1024 / 1024, octreeBytes / 1024 / 1024));
+    ThreadUsage total = null;
+    for (Map.Entry<Stage, ThreadUsage> stage : stages.entrySet()) {
+      summary.append(", ").append(stage.getKey().getLabel()).append(' ').append(stage.getValue());
+      total = total == null ? stage.getValue() : total.plus(stage.getValue());
+    }
+    if (total != null) {
+      summary.append(", total ").append(total);
+    }
+    return summary.toString();
+  }
+}
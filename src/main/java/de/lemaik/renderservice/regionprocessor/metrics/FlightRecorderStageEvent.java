@@ -0,0 +1,91 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.lemaik.renderservice.regionprocessor.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event of a stage. This is the only class that uses jdk.jfr, it is only loaded
+ * if the JVM has Flight Recorder (OpenJDK 8u262 and later). Recording it is enabled by default
+ * while a recording runs, e.g. one started with {@code -XX:StartFlightRecording}. The stages are
+ * known, so no stack trace is recorded.
+ */
+@Name("de.lemaik.renderservice.AssignmentStage")
+@Label("Assignment Stage")
+@Category("RenderService")
+@Description("A stage of an assignment or a phase of its octree generation")
+@StackTrace(false)
+class FlightRecorderStageEvent extends Event implements StageEvent {
+
+  @Label("Stage")
+  String stage;
+
+  @Label("Job Id")
+  String jobId;
+
+  @Label("Regions")
+  int regions;
+
+  @Label("Region Bytes")
+  @DataAmount
+  long regionBytes;
+
+  @Label("Octree Bytes")
+  @DataAmount
+  long octreeBytes;
+
+  @Label("CPU Time")
+  @Timespan
+  long cpuTime;
+
+  @Label("Allocated")
+  @DataAmount
+  long allocated;
+
+  static StageEvent start() {
+    FlightRecorderStageEvent event = new FlightRecorderStageEvent();
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void commit(String stage, ThreadUsage usage, AssignmentProfile profile) {
+    end();
+    if (shouldCommit()) {
+      this.stage = stage;
+      if (profile != null) {
+        jobId = profile.getJobId();
+        regions = profile.getRegions();
+        regionBytes = profile.getRegionBytes();
+        octreeBytes = profile.getOctreeBytes();
+      }
+      cpuTime = usage.getCpuNanos();
+      allocated = usage.getAllocatedBytes();
+      commit();
+    }
+  }
+}
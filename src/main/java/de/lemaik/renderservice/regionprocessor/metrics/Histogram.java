@@ -0,0 +1,118 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.metrics;
+
+import java.util.Arrays;
+
+/**
+ * A histogram with fixed buckets, exported in the Prometheus text format.
+ */
+public class Histogram {
+
+  private final double[] upperBounds;
+  private final long[] counts;
+  private double sum;
+  private long count;
+
+  /**
+   * Creates a new histogram.
+   *
+   * @param upperBounds upper bounds of the buckets, in ascending order
+   */
+  public Histogram(double... upperBounds) {
+    this.upperBounds = Arrays.copyOf(upperBounds, upperBounds.length);
+    this.counts = new long[upperBounds.length];
+  }
+
+  /**
+   * Adds a value to the histogram.
+   *
+   * @param value value to add
+   */
+  public synchronized void observe(double value) {
+    for (int i = 0; i < upperBounds.length; i++) {
+      if (value <= upperBounds[i]) {
+        counts[i]++;
+        break;
+      }
+    }
+    sum += value;
+    count++;
+  }
+
+  /**
+   * Adds a duration in nanoseconds to the histogram, in seconds.
+   *
+   * @param startNanos start of the duration, as returned by {@link System#nanoTime()}
+   */
+  public void observeSince(long startNanos) {
+    observe((System.nanoTime() - startNanos) / 1e9);
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * Estimates a quantile by interpolating linearly inside of the bucket that contains it, like
+   * the <code>histogram_quantile</code> function of Prometheus.
+   *
+   * @param q quantile, from 0 to 1
+   * @return estimated quantile, the largest upper bound if it is in the last bucket, or NaN if
+   * the histogram is empty
+   */
+  public synchronized double quantile(double q) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    double rank = q * count;
+    long cumulativeCount = 0;
+    for (int i = 0; i < upperBounds.length; i++) {
+      if (cumulativeCount + counts[i] >= rank && counts[i] > 0) {
+        double lowerBound = i == 0 ? 0 : upperBounds[i - 1];
+        return lowerBound
+            + (upperBounds[i] - lowerBound) * (rank - cumulativeCount) / counts[i];
+      }
+      cumulativeCount += counts[i];
+    }
+    return upperBounds[upperBounds.length - 1];
+  }
+
+  /**
+   * Appends the samples of this histogram.
+   *
+   * @param out    output
+   * @param name   metric name
+   * @param labels labels of this histogram, e.g. <code>stage="upload"</code>, or an empty string
+   */
+  public synchronized void writeTo(StringBuilder out, String name, String labels) {
+    String prefix = labels.isEmpty() ? "" : labels + ",";
+    long cumulativeCount = 0;
+    for (int i = 0; i < upperBounds.length; i++) {
+      cumulativeCount += counts[i];
+      out.append(name).append("_bucket{").append(prefix).append("le=\"").append(upperBounds[i])
+          .append("\"} ").append(cumulativeCount).append('\n');
+    }
+    out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(count)
+        .append('\n');
+    String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+    out.append(name).append("_sum").append(suffix).append(sum).append('\n');
+    out.append(name).append("_count").append(suffix).append(count).append('\n');
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a region processing node, exported in the Prometheus text format by a {@link
+ * MetricsServer}.
+ */
+public class NodeMetrics {
+
+  private static final double[] DURATION_BUCKETS = {
+      0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800, 3600
+  };
+
+  /**
+   * Stages of an assignment whose duration is measured.
+   */
+  public enum Stage {
+    JOB_FETCH("job_fetch"),
+    SCENE_FETCH("scene_fetch"),
+    REGION_DOWNLOAD("region_download"),
+    OCTREE_BUILD("octree_build"),
+    UPLOAD("upload");
+
+    private final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  /**
+   * Ways an assignment can leave the node.
+   */
+  public enum Result {
+    ACKED("acked"),
+    NACKED("nacked"),
+    REJECTED("rejected"),
+    SKIPPED("skipped");
+
+    private final String label;
+
+    Result(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private final Map<Stage, Histogram> stageDurations = new EnumMap<>(Stage.class);
+  private final Map<Stage, AtomicLong> stageCpuNanos = new EnumMap<>(Stage.class);
+  private final Map<Stage, AtomicLong> stageAllocatedBytes = new EnumMap<>(Stage.class);
+  private final Histogram queueWait = new Histogram(DURATION_BUCKETS);
+  private final Map<Result, AtomicLong> assignments = new EnumMap<>(Result.class);
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong downloadedBytes = new AtomicLong();
+  private final AtomicLong uploadedBytes = new AtomicLong();
+
+  public NodeMetrics() {
+    for (Stage stage : Stage.values()) {
+      stageDurations.put(stage, new Histogram(DURATION_BUCKETS));
+      stageCpuNanos.put(stage, new AtomicLong());
+      stageAllocatedBytes.put(stage, new AtomicLong());
+    }
+    for (Result result : Result.values()) {
+      assignments.put(result, new AtomicLong());
+    }
+  }
+
+  /**
+   * Records the duration, the CPU time and the allocations of a stage.
+   *
+   * @param stage stage
+   * @param usage usage of the thread that ran the stage
+   */
+  public void observeStage(Stage stage, ThreadUsage usage) {
+    stageDurations.get(stage).observe(usage.getWallNanos() / 1e9);
+    stageCpuNanos.get(stage).addAndGet(usage.getCpuNanos());
+    stageAllocatedBytes.get(stage).addAndGet(usage.getAllocatedBytes());
+  }
+
+  /**
+   * Records the time between the delivery of an assignment and the start of its processing.
+   *
+   * @param deliveryNanos time of the delivery, as returned by {@link System#nanoTime()}
+   */
+  public void observeQueueWait(long deliveryNanos) {
+    queueWait.observeSince(deliveryNanos);
+  }
+
+  public Histogram getStageDuration(Stage stage) {
+    return stageDurations.get(stage);
+  }
+
+  public Histogram getQueueWait() {
+    return queueWait;
+  }
+
+  public void assignmentReceived() {
+    inFlight.incrementAndGet();
+  }
+
+  public void assignmentFinished(Result result) {
+    inFlight.decrementAndGet();
+    assignments.get(result).incrementAndGet();
+  }
+
+  public void addDownloadedBytes(long bytes) {
+    downloadedBytes.addAndGet(bytes);
+  }
+
+  public void addUploadedBytes(long bytes) {
+    uploadedBytes.addAndGet(bytes);
+  }
+
+  /**
+   * Creates the Prometheus text representation of the current metrics.
+   *
+   * @return metrics in the Prometheus text format
+   */
+  public String export() {
+    StringBuilder out = new StringBuilder();
+
+    header(out, "regionprocessor_stage_duration_seconds", "histogram",
+        "Duration of the assignment stages");
+    for (Map.Entry<Stage, Histogram> stage : stageDurations.entrySet()) {
+      stage.getValue().writeTo(out, "regionprocessor_stage_duration_seconds",
+          "stage=\"" + stage.getKey().label + "\"");
+    }
+    header(out, "regionprocessor_stage_cpu_seconds_total", "counter",
+        "CPU time of the threads that ran the assignment stages");
+    for (Map.Entry<Stage, AtomicLong> stage : stageCpuNanos.entrySet()) {
+      out.append("regionprocessor_stage_cpu_seconds_total{stage=\"").append(stage.getKey().label)
+          .append("\"} ").append(stage.getValue().get() / 1e9).append('\n');
+    }
+    header(out, "regionprocessor_stage_allocated_bytes_total", "counter",
+        "Bytes allocated by the threads that ran the assignment stages");
+    for (Map.Entry<Stage, AtomicLong> stage : stageAllocatedBytes.entrySet()) {
+      sample(out, "regionprocessor_stage_allocated_bytes_total",
+          "stage=\"" + stage.getKey().label + "\"", stage.getValue().get());
+    }
+    header(out, "regionprocessor_queue_wait_seconds", "histogram",
+        "Time from the delivery of an assignment to the start of its processing");
+    queueWait.writeTo(out, "regionprocessor_queue_wait_seconds", "");
+
+    header(out, "regionprocessor_assignments_total", "counter",
+        "Assignments that left the node, by result");
+    for (Map.Entry<Result, AtomicLong> result : assignments.entrySet()) {
+      sample(out, "regionprocessor_assignments_total",
+          "result=\"" + result.getKey().label + "\"", result.getValue().get());
+    }
+    header(out, "regionprocessor_assignments_in_flight", "gauge",
+        "Assignments that were delivered and are not acked or nacked yet");
+    sample(out, "regionprocessor_assignments_in_flight", "", inFlight.get());
+    header(out, "regionprocessor_downloaded_bytes_total", "counter",
+        "Bytes downloaded from the master");
+    sample(out, "regionprocessor_downloaded_bytes_total", "", downloadedBytes.get());
+    header(out, "regionprocessor_uploaded_bytes_total", "counter",
+        "Bytes uploaded to the master, after compression");
+    sample(out, "regionprocessor_uploaded_bytes_total", "", uploadedBytes.get());
+
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+    header(out, "jvm_memory_bytes_used", "gauge", "Used JVM memory");
+    sample(out, "jvm_memory_bytes_used", "area=\"heap\"", heap.getUsed());
+    sample(out, "jvm_memory_bytes_used", "area=\"nonheap\"", nonHeap.getUsed());
+    header(out, "jvm_memory_bytes_committed", "gauge", "Committed JVM memory");
+    sample(out, "jvm_memory_bytes_committed", "area=\"heap\"", heap.getCommitted());
+    sample(out, "jvm_memory_bytes_committed", "area=\"nonheap\"", nonHeap.getCommitted());
+    header(out, "jvm_memory_bytes_max", "gauge", "Maximum JVM memory, -1 if undefined");
+    sample(out, "jvm_memory_bytes_max", "area=\"heap\"", heap.getMax());
+    sample(out, "jvm_memory_bytes_max", "area=\"nonheap\"", nonHeap.getMax());
+
+    header(out, "jvm_gc_collection_seconds", "summary",
+        "Time spent in the garbage collectors");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      String labels = "gc=\"" + gc.getName() + "\"";
+      sample(out, "jvm_gc_collection_seconds_count", labels, gc.getCollectionCount());
+      out.append("jvm_gc_collection_seconds_sum{").append(labels).append("} ")
+          .append(gc.getCollectionTime() / 1000.0).append('\n');
+    }
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, long value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.lemaik.renderservice.regionprocessor.metrics;
+
+/**
+ * A stage of an assignment or a phase of the octree generation that is recorded as a Java Flight
+ * Recorder event. It begins when the {@link ThreadUsage} snapshot is taken.
+ */
+interface StageEvent {
+
+  StageEvent NONE = (stage, usage, profile) -> {
+  };
+
+  /**
+   * Ends this event and commits it, if Flight Recorder records it.
+   *
+   * @param stage   name of the stage or phase
+   * @param usage   usage of the thread during the stage
+   * @param profile assignment the stage belongs to, or null if it is unknown
+   */
+  void commit(String stage, ThreadUsage usage, AssignmentProfile profile);
+}
@@ -0,0 +1,115 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import de.lemaik.renderservice.regionprocessor.metrics.NodeMetrics;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Directories, services and options that are shared by all assignments of a worker.
+ */
+public class AssignmentContext {
+
+  private final Path jobDirectory;
+  private final Path texturepacksDirectory;
+  private final RenderServerApiClient apiClient;
+  private boolean streamOctree;
+  private boolean regionCacheInMemoryWorkspace = true;
+  private RegionCache regionCache;
+  private SceneDataCache sceneDataCache;
+  private MemoryAdmission memoryAdmission;
+  private MemoryWorkspace memoryWorkspace;
+  private NodeMetrics metrics = new NodeMetrics();
+
+  public AssignmentContext(Path jobDirectory, Path texturepacksDirectory,
+      RenderServerApiClient apiClient) {
+    this.jobDirectory = jobDirectory;
+    this.texturepacksDirectory = texturepacksDirectory;
+    this.apiClient = apiClient;
+  }
+
+  public Path getJobDirectory() {
+    return jobDirectory;
+  }
+
+  public Path getTexturepacksDirectory() {
+    return texturepacksDirectory;
+  }
+
+  public RenderServerApiClient getApiClient() {
+    return apiClient;
+  }
+
+  public boolean isStreamOctree() {
+    return streamOctree;
+  }
+
+  public void setStreamOctree(boolean streamOctree) {
+    this.streamOctree = streamOctree;
+  }
+
+  public Optional<RegionCache> getRegionCache() {
+    return Optional.ofNullable(regionCache);
+  }
+
+  public void setRegionCache(RegionCache regionCache) {
+    this.regionCache = regionCache;
+  }
+
+  public boolean isRegionCacheInMemoryWorkspace() {
+    return regionCacheInMemoryWorkspace;
+  }
+
+  public void setRegionCacheInMemoryWorkspace(boolean regionCacheInMemoryWorkspace) {
+    this.regionCacheInMemoryWorkspace = regionCacheInMemoryWorkspace;
+  }
+
+  public Optional<SceneDataCache> getSceneDataCache() {
+    return Optional.ofNullable(sceneDataCache);
+  }
+
+  public void setSceneDataCache(SceneDataCache sceneDataCache) {
+    this.sceneDataCache = sceneDataCache;
+  }
+
+  public Optional<MemoryAdmission> getMemoryAdmission() {
+    return Optional.ofNullable(memoryAdmission);
+  }
+
+  public void setMemoryAdmission(MemoryAdmission memoryAdmission) {
+    this.memoryAdmission = memoryAdmission;
+  }
+
+  public Optional<MemoryWorkspace> getMemoryWorkspace() {
+    return Optional.ofNullable(memoryWorkspace);
+  }
+
+  public void setMemoryWorkspace(MemoryWorkspace memoryWorkspace) {
+    this.memoryWorkspace = memoryWorkspace;
+  }
+
+  public NodeMetrics getMetrics() {
+    return metrics;
+  }
+
+  public void setMetrics(NodeMetrics metrics) {
+    this.metrics = metrics;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+/**
+ * The delivery of an assignment, which is acknowledged once the assignment left the node. If the
+ * channel it was delivered on is lost and the assignment is redelivered while it is still being
+ * processed, the delivery is moved to the new channel so that the work isn't lost.
+ */
+public class AssignmentDelivery {
+
+  private final AssignmentDispatcher dispatcher;
+  private final String jobId;
+  private AssignmentDispatcher.ChannelConsumer consumer;
+  private long deliveryTag;
+  private boolean done;
+
+  AssignmentDelivery(AssignmentDispatcher dispatcher, String jobId,
+      AssignmentDispatcher.ChannelConsumer consumer, long deliveryTag) {
+    this.dispatcher = dispatcher;
+    this.jobId = jobId;
+    this.consumer = consumer;
+    this.deliveryTag = deliveryTag;
+  }
+
+  public String getJobId() {
+    return jobId;
+  }
+
+  /**
+   * Removes the assignment from the queue.
+   */
+  public void ack() {
+    complete(true);
+  }
+
+  /**
+   * Puts the assignment back into the queue.
+   */
+  public void nack() {
+    complete(false);
+  }
+
+  private void complete(boolean ack) {
+    AssignmentDispatcher.ChannelConsumer consumer;
+    long deliveryTag;
+    synchronized (this) {
+      if (done) {
+        return;
+      }
+      done = true;
+      consumer = this.consumer;
+      deliveryTag = this.deliveryTag;
+    }
+    dispatcher.completed(this);
+    if (ack) {
+      consumer.ack(this, deliveryTag);
+    } else {
+      consumer.nack(deliveryTag);
+    }
+  }
+
+  synchronized AssignmentDispatcher.ChannelConsumer getConsumer() {
+    return consumer;
+  }
+
+  /**
+   * Moves this delivery to a redelivery of the same assignment on another channel.
+   *
+   * @return false if this delivery was already acknowledged
+   */
+  synchronized boolean rebind(AssignmentDispatcher.ChannelConsumer consumer, long deliveryTag) {
+    if (done) {
+      return false;
+    }
+    this.consumer = consumer;
+    this.deliveryTag = deliveryTag;
+    return true;
+  }
+}
@@ -0,0 +1,361 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Pushes the deliveries of the assignment queue straight into an {@link AssignmentPipeline} and
+ * acknowledges them when they leave it.
+ *
+ * <ul>
+ * <li>All acks and nacks are sent by a single thread. Acks of consecutive deliveries that are
+ * pending at the same time are sent as one multiple ack, which is safe because no delivery with a
+ * lower tag is still being processed.</li>
+ * <li>The prefetch count is the capacity of the pipeline, minus the assignments that are still
+ * being processed for channels that were lost, and is updated whenever an assignment is done.
+ * While octree builds wait for memory, it is lowered to the assignments that are already on the
+ * node, so that other nodes get the next assignments instead. The prefetch count is set for the
+ * whole channel, because a per-consumer prefetch count only applies to consumers that are started
+ * after it was set and couldn't be changed for the running consumer.</li>
+ * <li>Deliveries are never blocked on. If the pipeline is full anyway, e.g. because a lower
+ * prefetch count didn't take effect yet, the assignment is put back into the queue.</li>
+ * <li>The dispatcher outlives the channels. If an assignment is redelivered on a new channel
+ * while it is still being processed, the running assignment is acknowledged on the new channel
+ * instead of being processed twice. If it was finished while no channel was open, the
+ * redelivery is acknowledged right away.</li>
+ * </ul>
+ */
+public class AssignmentDispatcher {
+
+  private static final Logger LOGGER = LogManager.getLogger(AssignmentDispatcher.class);
+  private static final Gson gson = new Gson();
+  private static final int MAX_LOST_ACKS = 1024;
+
+  private final AssignmentPipeline pipeline;
+  private final AssignmentContext context;
+  private final ExecutorService acknowledgements = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "assignment-acks");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Map<String, AssignmentDelivery> inFlight = new HashMap<>();
+  private volatile ChannelConsumer current;
+  private final Set<String> lostAcks = Collections.newSetFromMap(
+      new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_LOST_ACKS;
+        }
+      });
+
+  public AssignmentDispatcher(AssignmentPipeline pipeline, AssignmentContext context) {
+    this.pipeline = pipeline;
+    this.context = context;
+  }
+
+  /**
+   * Starts consuming assignments from a channel.
+   *
+   * @param channel   channel to consume from
+   * @param queueName name of the assignment queue
+   * @return consumer, which completes when the channel is closed
+   */
+  public ChannelConsumer consume(Channel channel, String queueName) throws IOException {
+    ChannelConsumer consumer = new ChannelConsumer(channel);
+    consumer.prefetchCount = getPrefetchTarget(consumer);
+    channel.basicQos(consumer.prefetchCount, true);
+    current = consumer;
+    channel.basicConsume(queueName, false, consumer);
+    return consumer;
+  }
+
+  private void dispatch(ChannelConsumer consumer, Envelope envelope, byte[] body) {
+    long deliveryTag = envelope.getDeliveryTag();
+    consumer.delivered(deliveryTag);
+
+    Assignment assignment;
+    try {
+      assignment = gson.fromJson(new String(body, StandardCharsets.UTF_8), Assignment.class);
+    } catch (JsonParseException e) {
+      LOGGER.error("Discarding an invalid assignment", e);
+      consumer.reject(deliveryTag);
+      return;
+    }
+
+    AssignmentDelivery delivery;
+    synchronized (this) {
+      if (envelope.isRedeliver()) {
+        AssignmentDelivery running = inFlight.get(assignment.getJobId());
+        if (running != null && !running.getConsumer().isOpen()
+            && running.rebind(consumer, deliveryTag)) {
+          LOGGER.info(String.format(
+              "Job %s was redelivered while it is still being processed, continuing with it",
+              assignment.getJobId()));
+          return;
+        }
+        if (lostAcks.remove(assignment.getJobId())) {
+          LOGGER.info(String.format(
+              "Job %s was redelivered after it was done while the connection was lost",
+              assignment.getJobId()));
+          consumer.ack(null, deliveryTag);
+          return;
+        }
+      }
+      delivery = new AssignmentDelivery(this, assignment.getJobId(), consumer, deliveryTag);
+      inFlight.put(assignment.getJobId(), delivery);
+    }
+    AssignmentWorker worker = new AssignmentWorker(assignment, delivery, context);
+    if (!pipeline.offer(worker)) {
+      worker.fail(new IllegalStateException("The assignment pipeline is full"));
+      return;
+    }
+    consumer.schedule();
+  }
+
+  void completed(AssignmentDelivery delivery) {
+    synchronized (this) {
+      inFlight.remove(delivery.getJobId(), delivery);
+    }
+    // the current channel may take another assignment now
+    ChannelConsumer consumer = current;
+    if (consumer != null) {
+      consumer.schedule();
+    }
+  }
+
+  private synchronized void ackLost(AssignmentDelivery delivery) {
+    lostAcks.add(delivery.getJobId());
+  }
+
+  /**
+   * Gets the prefetch count for a channel. The broker doesn't count the assignments that were
+   * delivered on other channels, so they are subtracted from the capacity of the pipeline.
+   *
+   * @param consumer consumer of the channel
+   * @return prefetch count, at least 1
+   */
+  private int getPrefetchTarget(ChannelConsumer consumer) {
+    int own = 0;
+    int others = 0;
+    synchronized (this) {
+      for (AssignmentDelivery delivery : inFlight.values()) {
+        if (delivery.getConsumer() == consumer) {
+          own++;
+        } else {
+          others++;
+        }
+      }
+    }
+    int target = Math.max(1, pipeline.getCapacity() - others);
+    if (isWaitingForMemory()) {
+      target = Math.max(1, Math.min(target, own));
+    }
+    return target;
+  }
+
+  private boolean isWaitingForMemory() {
+    return context.getMemoryAdmission().map(MemoryAdmission::isWaiting).orElse(false);
+  }
+
+  /**
+   * Consumes the assignments of one channel and sends their acks and nacks.
+   */
+  public class ChannelConsumer extends DefaultConsumer {
+
+    private final Channel channel;
+    private final TreeSet<Long> outstanding = new TreeSet<>();
+    private final TreeMap<Long, AssignmentDelivery> pendingAcks = new TreeMap<>();
+    private final List<Long> pendingNacks = new ArrayList<>();
+    private final List<Long> pendingRejects = new ArrayList<>();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private int prefetchCount;
+
+    ChannelConsumer(Channel channel) {
+      super(channel);
+      this.channel = channel;
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope,
+        AMQP.BasicProperties properties, byte[] body) {
+      dispatch(this, envelope, body);
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) {
+      LOGGER.warn("The assignment consumer was cancelled by the broker");
+      closed.complete(null);
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+      closed.complete(null);
+    }
+
+    /**
+     * Waits until the channel is closed or the consumer is cancelled.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitClose() throws InterruptedException {
+      try {
+        closed.get();
+      } catch (ExecutionException e) {
+        // never completed exceptionally
+      }
+    }
+
+    boolean isOpen() {
+      return !closed.isDone() && channel.isOpen();
+    }
+
+    synchronized void delivered(long deliveryTag) {
+      outstanding.add(deliveryTag);
+    }
+
+    void ack(AssignmentDelivery delivery, long deliveryTag) {
+      synchronized (this) {
+        outstanding.remove(deliveryTag);
+        pendingAcks.put(deliveryTag, delivery);
+      }
+      schedule();
+    }
+
+    void nack(long deliveryTag) {
+      synchronized (this) {
+        outstanding.remove(deliveryTag);
+        pendingNacks.add(deliveryTag);
+      }
+      schedule();
+    }
+
+    void reject(long deliveryTag) {
+      synchronized (this) {
+        outstanding.remove(deliveryTag);
+        pendingRejects.add(deliveryTag);
+      }
+      schedule();
+    }
+
+    void schedule() {
+      acknowledgements.execute(this::flush);
+    }
+
+    /**
+     * Sends the pending nacks, rejects and acks, and updates the prefetch count. Runs on the
+     * acknowledgement thread only.
+     */
+    private void flush() {
+      List<Long> nacks;
+      List<Long> rejects;
+      TreeMap<Long, AssignmentDelivery> batch;
+      TreeMap<Long, AssignmentDelivery> singles;
+      synchronized (this) {
+        nacks = new ArrayList<>(pendingNacks);
+        pendingNacks.clear();
+        rejects = new ArrayList<>(pendingRejects);
+        pendingRejects.clear();
+        // everything below the lowest outstanding delivery is done, so it can be acked at once
+        long limit = outstanding.isEmpty() ? Long.MAX_VALUE : outstanding.first();
+        batch = new TreeMap<>(pendingAcks.headMap(limit));
+        singles = new TreeMap<>(pendingAcks.tailMap(limit));
+        pendingAcks.clear();
+      }
+
+      // nacks go first, so that a multiple ack can't cover them
+      for (long deliveryTag : nacks) {
+        try {
+          channel.basicNack(deliveryTag, false, true);
+        } catch (IOException | RuntimeException e) {
+          // the broker requeues the assignment when the channel is closed anyway
+          LOGGER.warn("Could not nack an assignment", e);
+        }
+      }
+      for (long deliveryTag : rejects) {
+        try {
+          channel.basicReject(deliveryTag, false);
+        } catch (IOException | RuntimeException e) {
+          LOGGER.warn("Could not reject an assignment", e);
+        }
+      }
+      if (!batch.isEmpty()) {
+        try {
+          channel.basicAck(batch.lastKey(), batch.size() > 1);
+        } catch (IOException | RuntimeException e) {
+          LOGGER.warn("Could not ack " + batch.size() + " assignments", e);
+          batch.values().forEach(this::ackLost);
+        }
+      }
+      for (Map.Entry<Long, AssignmentDelivery> single : singles.entrySet()) {
+        try {
+          channel.basicAck(single.getKey(), false);
+        } catch (IOException | RuntimeException e) {
+          LOGGER.warn("Could not ack an assignment", e);
+          ackLost(single.getValue());
+        }
+      }
+      updatePrefetchCount();
+    }
+
+    private void ackLost(AssignmentDelivery delivery) {
+      if (delivery != null) {
+        AssignmentDispatcher.this.ackLost(delivery);
+      }
+    }
+
+    private void updatePrefetchCount() {
+      int target = getPrefetchTarget(this);
+      if (target != prefetchCount && channel.isOpen()) {
+        try {
+          channel.basicQos(target, true);
+          LOGGER.info(isWaitingForMemory()
+              ? "Builds are waiting for memory, prefetching " + target + " assignments"
+              : "Prefetching " + target + " assignments");
+          prefetchCount = target;
+        } catch (IOException | RuntimeException e) {
+          LOGGER.warn("Could not change the prefetch count", e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import de.lemaik.renderservice.regionprocessor.chunky.ChunkyWrapper;
+import de.lemaik.renderservice.regionprocessor.chunky.ChunkyWrapperFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Processes assignments in three stages (download, build and upload) that run concurrently, so
+ * that the network is used while octrees are generated and vice versa. Every stage has a fixed
+ * number of threads and takes its assignments from a bounded queue, so a slow stage throttles
+ * the stages in front of it. The queue in front of the download stage can hold the capacity of
+ * the whole pipeline, new assignments are limited by the prefetch count instead.
+ */
+public class AssignmentPipeline {
+
+  private static final Logger LOGGER = LogManager.getLogger(AssignmentPipeline.class);
+
+  private final BlockingQueue<AssignmentWorker> downloadQueue;
+  private final BlockingQueue<AssignmentWorker> buildQueue;
+  private final BlockingQueue<AssignmentWorker> uploadQueue;
+  private final List<Thread> threads = new ArrayList<>();
+  private final int capacity;
+
+  /**
+   * Creates a new pipeline.
+   *
+   * @param downloadThreads number of assignments that are downloaded concurrently
+   * @param buildSlots      number of octrees that are generated concurrently, each slot gets its
+   *                        own chunky instance
+   * @param uploadThreads   number of octrees that are uploaded concurrently
+   * @param queueSize       capacity of the queue in front of each stage
+   * @param chunkyFactory   factory for the chunky instances of the build slots
+   */
+  public AssignmentPipeline(int downloadThreads, int buildSlots, int uploadThreads,
+      int queueSize, ChunkyWrapperFactory chunkyFactory) {
+    capacity = downloadThreads + buildSlots + uploadThreads + 3 * queueSize;
+    downloadQueue = new ArrayBlockingQueue<>(capacity);
+    buildQueue = new ArrayBlockingQueue<>(queueSize);
+    uploadQueue = new ArrayBlockingQueue<>(queueSize);
+
+    for (int i = 0; i < downloadThreads; i++) {
+      threads.add(new StageThread("download-" + i, downloadQueue, buildQueue,
+          AssignmentWorker::prepare));
+    }
+    for (int i = 0; i < buildSlots; i++) {
+      ChunkyWrapper chunky = chunkyFactory.getChunkyInstance();
+      threads.add(new StageThread("build-" + i, buildQueue, uploadQueue,
+          assignment -> assignment.build(chunky)));
+    }
+    for (int i = 0; i < uploadThreads; i++) {
+      threads.add(new StageThread("upload-" + i, uploadQueue, null, assignment -> {
+        assignment.upload();
+        return true;
+      }));
+    }
+  }
+
+  public void start() {
+    for (Thread thread : threads) {
+      thread.start();
+    }
+  }
+
+  /**
+   * Adds an assignment to the pipeline without waiting.
+   *
+   * @param assignment assignment to process
+   * @return false if the pipeline is full, true otherwise
+   */
+  public boolean offer(AssignmentWorker assignment) {
+    return downloadQueue.offer(assignment);
+  }
+
+  /**
+   * Gets the maximum number of assignments that can be in this pipeline at the same time.
+   *
+   * @return capacity of this pipeline
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  private interface Stage {
+
+    /**
+     * Processes an assignment.
+     *
+     * @param assignment assignment to process
+     * @return true if the assignment should be passed to the next stage
+     */
+    boolean process(AssignmentWorker assignment) throws Exception;
+  }
+
+  private static class StageThread extends Thread {
+
+    private final BlockingQueue<AssignmentWorker> input;
+    private final BlockingQueue<AssignmentWorker> output;
+    private final Stage stage;
+
+    StageThread(String name, BlockingQueue<AssignmentWorker> input,
+        BlockingQueue<AssignmentWorker> output, Stage stage) {
+      super("pipeline-" + name);
+      this.input = input;
+      this.output = output;
+      this.stage = stage;
+    }
+
+    @Override
+    public void run() {
+      while (!interrupted()) {
+        AssignmentWorker assignment;
+        try {
+          assignment = input.take();
+        } catch (InterruptedException e) {
+          LOGGER.info("Pipeline stage interrupted", e);
+          return;
+        }
+
+        try {
+          if (!stage.process(assignment)) {
+            assignment.cleanup();
+            continue;
+          }
+        } catch (Exception e) {
+          assignment.fail(e);
+          continue;
+        }
+
+        if (output != null) {
+          try {
+            output.put(assignment);
+          } catch (InterruptedException e) {
+            assignment.fail(e);
+            return;
+          }
+        }
+      }
+    }
+  }
+}
@@ -18,125 +18,454 @@
 
 package de.lemaik.renderservice.regionprocessor.rendering;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonObject;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.QueueingConsumer;
 import de.lemaik.renderservice.regionprocessor.chunky.BinarySceneData;
+import de.lemaik.renderservice.regionprocessor.chunky.ChunkSelection;
 import de.lemaik.renderservice.regionprocessor.chunky.ChunkyWrapper;
+import de.lemaik.renderservice.regionprocessor.metrics.AssignmentProfile;
+import de.lemaik.renderservice.regionprocessor.metrics.NodeMetrics;
+import de.lemaik.renderservice.regionprocessor.metrics.NodeMetrics.Result;
+import de.lemaik.renderservice.regionprocessor.metrics.NodeMetrics.Stage;
+import de.lemaik.renderservice.regionprocessor.metrics.ThreadUsage;
+import de.lemaik.renderservice.regionprocessor.util.BoundedPipe;
 import de.lemaik.renderservice.regionprocessor.util.FileUtil;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import se.llbit.util.ProgressListener;
 import se.llbit.util.TaskTracker;
 
-public class AssignmentWorker implements Runnable {
+/**
+ * An assignment that is processed by the stages of an {@link AssignmentPipeline}.
+ */
+public class AssignmentWorker {
 
   private static final Logger LOGGER = LogManager.getLogger(AssignmentWorker.class);
-  private static final Gson gson = new Gson();
+  private static final int PIPE_CHUNK_SIZE = 64 * 1024;
+  private static final int PIPE_CHUNKS = 64; // at most 4 MB of octree data in memory
 
-  private final QueueingConsumer.Delivery delivery;
-  private final Channel channel;
-  private final Path workingDir;
+  private final Assignment assignment;
+  private final AssignmentDelivery delivery;
+  private final String workspaceName = UUID.randomUUID().toString();
+  private final Path jobDirectory;
   private final Path texturepacksDir;
-  private final ChunkyWrapper chunky;
   private final RenderServerApiClient apiClient;
+  private final boolean streamOctree;
+  private final RegionCache regionCache;
+  private final boolean regionCacheInMemoryWorkspace;
+  private final SceneDataCache sceneDataCache;
+  private final MemoryAdmission memoryAdmission;
+  private final MemoryWorkspace memoryWorkspace;
+  private final NodeMetrics metrics;
+  private final long deliveryTime = System.nanoTime();
+  private final AssignmentProfile profile = new AssignmentProfile();
+
+  private Job job;
+  private Path workingDir;
+  private boolean useRegionCache;
+  private long workspaceReservation;
+  private JsonObject scene;
+  private File texturepack;
+  private BinarySceneData data;
+  private String sceneDataKey;
+  private int chunks;
+  private long regionBytes;
+  private CompletableFuture<Void> upload;
+  private boolean finished;
 
-  public AssignmentWorker(QueueingConsumer.Delivery delivery, Channel channel, Path workingDir,
-      Path texturepacksDir, ChunkyWrapper chunky, RenderServerApiClient apiClient) {
+  public AssignmentWorker(Assignment assignment, AssignmentDelivery delivery,
+      AssignmentContext context) {
+    this.assignment = assignment;
     this.delivery = delivery;
-    this.channel = channel;
-    this.workingDir = workingDir;
-    this.texturepacksDir = texturepacksDir;
-    this.chunky = chunky;
-    this.apiClient = apiClient;
+    this.jobDirectory = context.getJobDirectory();
+    this.texturepacksDir = context.getTexturepacksDirectory();
+    this.apiClient = context.getApiClient();
+    this.streamOctree = context.isStreamOctree();
+    this.regionCache = context.getRegionCache().orElse(null);
+    this.regionCacheInMemoryWorkspace = context.isRegionCacheInMemoryWorkspace();
+    this.sceneDataCache = context.getSceneDataCache().orElse(null);
+    this.memoryAdmission = context.getMemoryAdmission().orElse(null);
+    this.memoryWorkspace = context.getMemoryWorkspace().orElse(null);
+    this.metrics = context.getMetrics();
+    profile.setJobId(assignment.getJobId());
+    metrics.assignmentReceived();
   }
 
-  @Override
-  public void run() {
-    try {
-      Assignment assignment = gson
-          .fromJson(new String(delivery.getBody(), "UTF-8"), Assignment.class);
-      LOGGER.info(String.format("New assignment for job %s", assignment.getJobId()));
-      final Job job = apiClient.getJob(assignment.getJobId()).get(10, TimeUnit.MINUTES);
-      if (job == null) {
-        LOGGER.info("Job was deleted, skipping and removing it from the queue");
-        channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-        return;
+  /**
+   * Fetches the job and downloads the scene, the regions and the texturepack.
+   *
+   * @return false if the assignment was skipped and removed from the queue, true otherwise
+   */
+  public boolean prepare() throws Exception {
+    metrics.observeQueueWait(deliveryTime);
+    LOGGER.info(String.format("New assignment for job %s", assignment.getJobId()));
+    ThreadUsage start = ThreadUsage.start();
+    job = apiClient.getJob(assignment.getJobId()).get(10, TimeUnit.MINUTES);
+    endStage(Stage.JOB_FETCH, start);
+    if (job == null) {
+      LOGGER.info("Job was deleted, skipping and removing it from the queue");
+      delivery.ack();
+      finish(Result.SKIPPED);
+      return false;
+    }
+    if (job.isCancelled()) {
+      LOGGER.info("Job is cancelled, skipping and removing it from the queue");
+      delivery.ack();
+      finish(Result.SKIPPED);
+      return false;
+    }
+    LOGGER.info(String.format("%d regions", job.getRegionUrls().count()));
+
+    LOGGER.info("Downloading scene files...");
+
+    start = ThreadUsage.start();
+    scene = apiClient.getScene(job).get(10, TimeUnit.MINUTES);
+    endStage(Stage.SCENE_FETCH, start);
+    ChunkSelection selection = ChunkSelection.fromScene(scene);
+    List<Job.JobFile> regions = job.getRegionUrls()
+        .filter(file -> selection.needsFile(file.getName()))
+        .collect(Collectors.toList());
+    long skippedRegions = job.getRegionUrls().count() - regions.size();
+    if (skippedRegions > 0) {
+      long skippedBytes = job.getRegionUrls()
+          .filter(file -> !selection.needsFile(file.getName()))
+          .mapToLong(file -> Math.max(0, file.getSize()))
+          .sum();
+      LOGGER.info(String.format("Skipping %d regions (%d bytes) without selected chunks",
+          skippedRegions, skippedBytes));
+    }
+    // chunks that turn out not to exist only make the estimate smaller, so a job that is too large
+    // for this node is rejected before any region is downloaded
+    if (!admissible(selection.size(),
+        regions.stream().mapToLong(file -> Math.max(0, file.getSize())).sum())) {
+      return false;
+    }
+
+    final File regionsPath = new File(createWorkingDir(regions).toFile(), "region");
+    regionsPath.mkdirs();
+
+    // apiClient.downloadFoliage(job, new File(workingDir.toFile(), "scene.foliage")),
+    // apiClient.downloadGrass(job, new File(workingDir.toFile(), "scene.grass")),
+    start = ThreadUsage.start();
+    Map<String, String> regionHashes = new ConcurrentHashMap<>();
+    CompletableFuture<Void> downloads = CompletableFuture.allOf(
+        regions.stream().map(file -> downloadRegion(file, regionsPath)
+            .thenAccept(downloaded -> regionHashes.put(file.getName(), downloaded.getSha256())))
+            .toArray(CompletableFuture[]::new)
+    );
+    long deadline = System.nanoTime() + TimeUnit.HOURS.toNanos(4); // timeout after 4 hours
+    while (true) {
+      try {
+        downloads.get(1, TimeUnit.MINUTES);
+        break;
+      } catch (TimeoutException e) {
+        if (System.nanoTime() > deadline) {
+          throw e;
+        }
+        LOGGER.info("Downloading... " + apiClient.getDownloadScheduler());
       }
-      if (job.isCancelled()) {
-        LOGGER.info("Job is cancelled, skipping and removing it from the queue");
-        channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-        return;
+    }
+    endStage(Stage.REGION_DOWNLOAD, start);
+    regionBytes = regions.stream()
+        .mapToLong(file -> new File(regionsPath, file.getName()).length()).sum();
+    profile.setRegions(regions.size(), regionBytes);
+    LOGGER.info("Downloads: " + apiClient.getDownloadScheduler());
+    if (regionCache != null) {
+      LOGGER.info("Region cache: " + regionCache);
+    }
+
+    int selectedChunks = selection.size();
+    int missingChunks = 0;
+    for (Job.JobFile file : regions) {
+      missingChunks += selection.retainPresentChunks(new File(regionsPath, file.getName()));
+    }
+    if (missingChunks > 0) {
+      LOGGER.info(String.format("Dropping %d of %d selected chunks that don't exist",
+          missingChunks, selectedChunks));
+      selection.writeTo(scene);
+    }
+    chunks = selection.size();
+
+    scene.addProperty("name", "scene");
+    scene.getAsJsonObject("world").addProperty("path", "");
+    if (sceneDataCache != null) {
+      sceneDataKey = SceneDataCache.getKey(scene, regionHashes, job.getTexturepack());
+    }
+
+    if (job.getTexturepack() != null) {
+      texturepack = new File(texturepacksDir.toFile(), job.getTexturepack() + ".zip");
+      if (!texturepack.isFile()) {
+        LOGGER.info("Downloading texturepack...");
+        apiClient.downloadResourcepack(job.getTexturepack(), texturepack).get(4, TimeUnit.HOURS);
       }
-      LOGGER.info(String.format("%d regions", job.getRegionUrls().count()));
-
-      final JsonObject[] sceneDescription = new JsonObject[1];
-      LOGGER.info("Downloading scene files...");
-
-      final File regionsPath = new File(workingDir.toFile(), "region");
-      regionsPath.mkdirs();
-
-      CompletableFuture.allOf(
-          apiClient.getScene(job).thenAccept((scene -> {
-            scene.addProperty("name", "scene");
-            scene.getAsJsonObject("world").addProperty("path", "");
-            sceneDescription[0] = scene;
-
-            try (OutputStreamWriter out = new OutputStreamWriter(
-                new FileOutputStream(new File(workingDir.toFile(), "scene.json")))) {
-              new Gson().toJson(scene, out);
-            } catch (IOException e) {
-              // TODO
-              e.printStackTrace();
-            }
-          })),
-          // apiClient.downloadFoliage(job, new File(workingDir.toFile(), "scene.foliage")),
-          // apiClient.downloadGrass(job, new File(workingDir.toFile(), "scene.grass")),
-          CompletableFuture.allOf(
-              job.getRegionUrls().map(file -> apiClient
-                  .downloadFile(file.getUrl(), new File(regionsPath, file.getName())))
-                  .toArray(CompletableFuture[]::new)
-          )
-      ).get(4, TimeUnit.HOURS); // timeout after 4 hours of downloading
-
-      File texturepack = null;
-      if (job.getTexturepack() != null) {
-        texturepack = new File(texturepacksDir.toFile(), job.getTexturepack() + ".zip");
-        if (!texturepack.isFile()) {
-          LOGGER.info("Downloading texturepack...");
-          apiClient.downloadResourcepack(job.getTexturepack(), texturepack).get(4, TimeUnit.HOURS);
+    }
+    return true;
+  }
+
+  /**
+   * Creates the working directory of this assignment, in the memory workspace if the regions fit
+   * into it and in the job directory otherwise.
+   *
+   * @param regions regions that will be downloaded
+   * @return working directory
+   */
+  private synchronized Path createWorkingDir(List<Job.JobFile> regions) {
+    if (memoryWorkspace != null) {
+      long regionBytes = regions.stream().anyMatch(file -> file.getSize() < 0) ? -1
+          : regions.stream().mapToLong(Job.JobFile::getSize).sum();
+      long size = memoryWorkspace.estimate(regionBytes);
+      if (memoryWorkspace.reserve(size)) {
+        workspaceReservation = size;
+        workingDir = memoryWorkspace.getDirectory().resolve(workspaceName);
+        // cached regions would be copied into the workspace if they can't be hard-linked
+        useRegionCache = regionCache != null && regionCacheInMemoryWorkspace;
+        LOGGER.info("Using the memory workspace: " + memoryWorkspace);
+        return workingDir;
+      }
+      LOGGER.info("The regions don't fit into the memory workspace, using the disk: "
+          + memoryWorkspace);
+    }
+    workingDir = jobDirectory.resolve(workspaceName);
+    useRegionCache = regionCache != null;
+    return workingDir;
+  }
+
+  private CompletableFuture<DownloadedFile> downloadRegion(Job.JobFile file, File regionsPath) {
+    File target = new File(regionsPath, file.getName());
+    if (useRegionCache) {
+      return regionCache.fetch(file.getUrl(), file.getSize(), target);
+    }
+    return apiClient.downloadFile(file.getUrl(), target, file.getSize());
+  }
+
+  /**
+   * Checks if the octree of this assignment can ever be built on this node and rejects the
+   * assignment otherwise.
+   *
+   * @param chunks      number of chunks in the scene
+   * @param regionBytes total size of the region files
+   * @return false if the assignment was rejected, true otherwise
+   */
+  private boolean admissible(int chunks, long regionBytes) {
+    if (memoryAdmission == null) {
+      return true;
+    }
+    long estimate = estimateHeap(chunks, regionBytes);
+    if (!memoryAdmission.fits(estimate)) {
+      reject(String.format(
+          "%d chunks need an estimated %d MB of heap, but builds may only use %d MB", chunks,
+          estimate / 1024 / 1024, memoryAdmission.getBudget() / 1024 / 1024));
+      return false;
+    }
+    return true;
+  }
+
+  private long estimateHeap(int chunks, long regionBytes) {
+    return memoryAdmission.estimate(chunks, regionBytes,
+        streamOctree ? PIPE_CHUNK_SIZE * PIPE_CHUNKS : 0);
+  }
+
+  /**
+   * Generates the octree. The downloaded files are deleted afterwards. If the octree is streamed,
+   * the upload is started here and runs while the octree is serialized. With memory admission,
+   * this waits until the estimated heap is available first. Assignments that are too large are
+   * usually rejected before their regions are downloaded already, but the size of the regions may
+   * not be known until then.
+   *
+   * @param chunky chunky instance to use
+   * @return false if the assignment was rejected, true otherwise
+   */
+  public boolean build(ChunkyWrapper chunky) throws Exception {
+    long estimate = 0;
+    if (memoryAdmission != null) {
+      if (!admissible(chunks, regionBytes)) {
+        return false;
+      }
+      estimate = estimateHeap(chunks, regionBytes);
+      memoryAdmission.acquire(estimate);
+    }
+
+    // the phases of the octree generation are recorded for this assignment
+    profile.enter();
+    ThreadUsage start = ThreadUsage.start();
+    try {
+      if (sceneDataCache == null) {
+        LOGGER.info(String.format("Generating octree for job %s...", job.getId()));
+        if (streamOctree) {
+          buildStreaming(chunky);
+        } else {
+          data = chunky.generateOctree(scene, workingDir.toFile(), 0, texturepack, null);
+        }
+      } else if (streamOctree) {
+        // streamed octrees are not buffered, so they can't be cached
+        data = sceneDataCache.get(sceneDataKey);
+        if (data == null) {
+          LOGGER.info(String.format("Generating octree for job %s...", job.getId()));
+          buildStreaming(chunky);
         }
+      } else {
+        data = sceneDataCache.getOrBuild(sceneDataKey, () -> {
+          LOGGER.info(String.format("Generating octree for job %s...", job.getId()));
+          return chunky.generateOctree(scene, workingDir.toFile(), 0, texturepack, null);
+        });
+      }
+      if (sceneDataCache != null) {
+        LOGGER.info("Scene data cache: " + sceneDataCache);
+      }
+      endStage(Stage.OCTREE_BUILD, start);
+      if (data != null) {
+        profile.setOctreeBytes(data.getOctreeSize());
       }
+    } finally {
+      profile.exit();
+      if (memoryAdmission != null) {
+        memoryAdmission.release(estimate);
+        LOGGER.info(String.format(
+            "Job %s: estimated %d MB of heap for %d chunks and %d MB of regions, heap usage: %s",
+            job.getId(), estimate / 1024 / 1024, chunks, regionBytes / 1024 / 1024,
+            MemoryAdmission.describeHeapUsage()));
+      }
+      cleanup();
+    }
+    return true;
+  }
 
-      LOGGER.info("Generating octree...");
-      BinarySceneData data = chunky
-          .generateOctree(new File(workingDir.toFile(), "scene.json"), workingDir.toFile(), 0, texturepack);
+  private void buildStreaming(ChunkyWrapper chunky) throws IOException {
+    BoundedPipe pipe = new BoundedPipe(PIPE_CHUNK_SIZE, PIPE_CHUNKS);
+    CompletableFuture<BinarySceneData> sceneData = new CompletableFuture<>();
 
-      LOGGER.info("Uploading...");
-      apiClient.uploadSceneData(job.getId(), data, new TaskTracker(ProgressListener.NONE)).get();
+    // the upload is started once chunky starts writing the octree, not while chunks are loaded
+    OutputStream octreeStream = new FilterOutputStream(pipe.sink()) {
+      @Override
+      public void write(int b) throws IOException {
+        startUpload();
+        out.write(b);
+      }
 
-      channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-      LOGGER.info("Done");
-    } catch (Exception e) {
-      LOGGER.warn("An error occurred while processing a task", e);
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        startUpload();
+        out.write(b, off, len);
+      }
 
-      if (channel.isOpen()) {
-        try {
-          channel.basicNack(delivery.getEnvelope().getDeliveryTag(), false, true);
-        } catch (IOException e1) {
-          LOGGER.error("Could not nack a failed task", e);
+      private void startUpload() {
+        if (upload == null) {
+          upload = apiClient.uploadSceneData(job.getId(), pipe.source(), sceneData,
+              new TaskTracker(ProgressListener.NONE));
+          upload.whenComplete((result, e) -> {
+            if (e != null) {
+              pipe.cancel();
+            }
+          });
         }
       }
+    };
+
+    try {
+      data = chunky.generateOctree(scene, workingDir.toFile(), 0, texturepack, octreeStream);
+      if (upload == null || !pipe.isSinkClosed()) {
+        throw new IOException("The octree was not written");
+      }
+      sceneData.complete(data);
+    } catch (IOException | RuntimeException e) {
+      pipe.fail(e);
+      sceneData.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Uploads the generated octree, or waits for the streaming upload to finish, and removes the
+   * assignment from the queue.
+   */
+  public void upload() throws Exception {
+    ThreadUsage start = ThreadUsage.start();
+    if (upload == null) {
+      LOGGER.info(String.format("Uploading job %s...", job.getId()));
+      upload = apiClient.uploadSceneData(job.getId(), data, new TaskTracker(ProgressListener.NONE));
+    }
+    try {
+      upload.get();
     } finally {
+      releaseData();
+    }
+    endStage(Stage.UPLOAD, start);
+
+    delivery.ack();
+    finish(Result.ACKED);
+    LOGGER.info(String.format("Done with job %s", job.getId()));
+  }
+
+  /**
+   * Puts the assignment back into the queue without processing it, so that a node with more
+   * memory can take it.
+   *
+   * @param reason reason for the rejection
+   */
+  private void reject(String reason) {
+    LOGGER.warn(String.format("Rejecting job %s and putting it back into the queue: %s",
+        job.getId(), reason));
+    delivery.nack();
+    finish(Result.REJECTED);
+  }
+
+  /**
+   * Puts the assignment back into the queue after a stage failed.
+   *
+   * @param e cause of the failure
+   */
+  public void fail(Exception e) {
+    LOGGER.warn("An error occurred while processing a task", e);
+    releaseData();
+
+    delivery.nack();
+    finish(Result.NACKED);
+    cleanup();
+  }
+
+  private void endStage(Stage stage, ThreadUsage start) {
+    ThreadUsage usage = start.stop(stage.getLabel(), profile);
+    metrics.observeStage(stage, usage);
+    profile.record(stage, usage);
+  }
+
+  private synchronized void finish(Result result) {
+    if (!finished) {
+      finished = true;
+      metrics.assignmentFinished(result);
+      LOGGER.info(profile.summarize(result));
+    }
+  }
+
+  private void releaseData() {
+    if (data != null) {
+      data.close();
+      data = null;
+    }
+  }
+
+  /**
+   * Deletes the working directory of this assignment.
+   */
+  public synchronized void cleanup() {
+    if (workingDir != null) {
       FileUtil.deleteDirectory(workingDir.toFile());
     }
+    if (workspaceReservation > 0) {
+      memoryWorkspace.release(workspaceReservation);
+      workspaceReservation = 0;
+    }
   }
 }
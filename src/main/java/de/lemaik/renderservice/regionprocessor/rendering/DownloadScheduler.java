@@ -0,0 +1,257 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import okhttp3.HttpUrl;
+
+/**
+ * Schedules file downloads. At most a fixed number of downloads run at the same time, both in
+ * total and per host, and waiting downloads are started by priority. The throughput of the
+ * running downloads is measured while they transfer data.
+ */
+public class DownloadScheduler {
+
+  /**
+   * The order in which waiting downloads are started.
+   */
+  public enum Order {
+    /**
+     * Start downloads in the order they were requested, which is the order of the files in the
+     * job and the order in which they are loaded.
+     */
+    LOADER_ORDER,
+
+    /**
+     * Start the largest downloads first, so that a single large file doesn't finish last. Files
+     * of unknown size are started after all files of known size.
+     */
+    LARGEST_FIRST
+  }
+
+  private final int maxDownloads;
+  private final int maxDownloadsPerHost;
+  private final Comparator<ScheduledDownload> order;
+  private final Map<String, PriorityQueue<ScheduledDownload>> waitingPerHost = new HashMap<>();
+  private final List<ScheduledDownload> running = new ArrayList<>();
+  private final Map<String, Integer> runningPerHost = new HashMap<>();
+  private final AtomicLong totalBytes = new AtomicLong();
+  private long nextSequenceNumber;
+  private long completedNanos;
+  private long completedBytes;
+
+  /**
+   * Creates a new scheduler.
+   *
+   * @param maxDownloads        maximum number of concurrent downloads
+   * @param maxDownloadsPerHost maximum number of concurrent downloads from a single host
+   * @param order               order in which waiting downloads are started
+   */
+  public DownloadScheduler(int maxDownloads, int maxDownloadsPerHost, Order order) {
+    this.maxDownloads = maxDownloads;
+    this.maxDownloadsPerHost = maxDownloadsPerHost;
+    Comparator<ScheduledDownload> sequence = Comparator.comparingLong(d -> d.sequenceNumber);
+    if (order == Order.LARGEST_FIRST) {
+      this.order = Comparator.<ScheduledDownload>comparingLong(d -> -d.sizeHint)
+          .thenComparing(sequence);
+    } else {
+      this.order = sequence;
+    }
+  }
+
+  public int getMaxDownloads() {
+    return maxDownloads;
+  }
+
+  public int getMaxDownloadsPerHost() {
+    return maxDownloadsPerHost;
+  }
+
+  /**
+   * Schedules a download.
+   *
+   * @param url      URL of the file, used to limit the downloads per host
+   * @param sizeHint expected size in bytes, or -1 if unknown
+   * @param download starts the download when it is scheduled and reports the transferred bytes to
+   *                 the given consumer
+   * @return future that completes with the download
+   */
+  public <T> CompletableFuture<T> schedule(String url, long sizeHint,
+      Function<LongConsumer, CompletableFuture<T>> download) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    HttpUrl parsedUrl = HttpUrl.parse(url);
+    ScheduledDownload scheduled = new ScheduledDownload(
+        parsedUrl != null ? parsedUrl.host() : url, sizeHint, result);
+    scheduled.start = counter -> download.apply(counter).whenComplete((value, e) -> {
+      finished(scheduled);
+      if (e != null) {
+        result.completeExceptionally(e);
+      } else {
+        result.complete(value);
+      }
+    });
+
+    synchronized (this) {
+      scheduled.sequenceNumber = nextSequenceNumber++;
+      waitingPerHost.computeIfAbsent(scheduled.host, host -> new PriorityQueue<>(order))
+          .add(scheduled);
+    }
+    startWaitingDownloads();
+    return result;
+  }
+
+  private void startWaitingDownloads() {
+    List<ScheduledDownload> toStart = new ArrayList<>();
+    synchronized (this) {
+      while (running.size() < maxDownloads) {
+        ScheduledDownload next = null;
+        for (Map.Entry<String, PriorityQueue<ScheduledDownload>> host : waitingPerHost
+            .entrySet()) {
+          if (runningPerHost.getOrDefault(host.getKey(), 0) < maxDownloadsPerHost) {
+            ScheduledDownload candidate = host.getValue().peek();
+            if (next == null || order.compare(candidate, next) < 0) {
+              next = candidate;
+            }
+          }
+        }
+        if (next == null) {
+          break;
+        }
+
+        PriorityQueue<ScheduledDownload> hostQueue = waitingPerHost.get(next.host);
+        hostQueue.poll();
+        if (hostQueue.isEmpty()) {
+          waitingPerHost.remove(next.host);
+        }
+        running.add(next);
+        runningPerHost.merge(next.host, 1, Integer::sum);
+        next.startNanos = System.nanoTime();
+        toStart.add(next);
+      }
+    }
+
+    for (ScheduledDownload download : toStart) {
+      try {
+        download.start.apply(bytes -> {
+          download.bytes.addAndGet(bytes);
+          totalBytes.addAndGet(bytes);
+        });
+      } catch (RuntimeException e) {
+        // fail only this download, the caller may be an unrelated download that just finished
+        download.result.completeExceptionally(e);
+        finished(download);
+      }
+    }
+  }
+
+  private void finished(ScheduledDownload download) {
+    synchronized (this) {
+      if (!running.remove(download)) {
+        return;
+      }
+      runningPerHost.computeIfPresent(download.host, (host, count) -> count > 1 ? count - 1 : null);
+      completedNanos += System.nanoTime() - download.startNanos;
+      completedBytes += download.bytes.get();
+    }
+    startWaitingDownloads();
+  }
+
+  /**
+   * Gets the total number of bytes that were downloaded.
+   *
+   * @return downloaded bytes
+   */
+  public long getTotalBytes() {
+    return totalBytes.get();
+  }
+
+  /**
+   * Gets the current throughput of all running downloads.
+   *
+   * @return sum of the average throughputs of the running downloads, in bytes per second
+   */
+  public synchronized double getCurrentThroughput() {
+    double throughput = 0;
+    long now = System.nanoTime();
+    for (ScheduledDownload download : running) {
+      throughput += download.getThroughput(now);
+    }
+    return throughput;
+  }
+
+  /**
+   * Gets the average throughput of a single connection over all completed downloads.
+   *
+   * @return average throughput per connection, in bytes per second
+   */
+  public synchronized double getAverageConnectionThroughput() {
+    return completedNanos > 0 ? completedBytes / (completedNanos / 1e9) : 0;
+  }
+
+  public synchronized int getRunningDownloads() {
+    return running.size();
+  }
+
+  public synchronized int getWaitingDownloads() {
+    int waiting = 0;
+    for (PriorityQueue<ScheduledDownload> host : waitingPerHost.values()) {
+      waiting += host.size();
+    }
+    return waiting;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "%d running, %d waiting, %.1f MB/s now, %.1f MB/s per connection on average, %d MB total",
+        running.size(), getWaitingDownloads(), getCurrentThroughput() / 1024 / 1024,
+        getAverageConnectionThroughput() / 1024 / 1024, totalBytes.get() / 1024 / 1024);
+  }
+
+  private static class ScheduledDownload {
+
+    private final String host;
+    private final long sizeHint;
+    private final CompletableFuture<?> result;
+    private final AtomicLong bytes = new AtomicLong();
+    private Function<LongConsumer, ?> start;
+    private long sequenceNumber;
+    private long startNanos;
+
+    ScheduledDownload(String host, long sizeHint, CompletableFuture<?> result) {
+      this.host = host;
+      this.sizeHint = sizeHint;
+      this.result = result;
+    }
+
+    double getThroughput(long now) {
+      long elapsed = now - startNanos;
+      return elapsed > 0 ? bytes.get() / (elapsed / 1e9) : 0;
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import java.io.File;
+
+/**
+ * A file that was downloaded by the {@link RenderServerApiClient}.
+ */
+public class DownloadedFile {
+
+  private final File file;
+  private final String sha256;
+  private final long size;
+  private final String etag;
+  private final String lastModified;
+
+  public DownloadedFile(File file, String sha256, long size) {
+    this(file, sha256, size, null, null);
+  }
+
+  /**
+   * Creates a downloaded file with the validators that the server sent for it.
+   *
+   * @param file         file
+   * @param sha256       hex-encoded SHA-256 hash of the content
+   * @param size         size in bytes
+   * @param etag         value of the ETag header, or null
+   * @param lastModified value of the Last-Modified header, or null
+   */
+  public DownloadedFile(File file, String sha256, long size, String etag, String lastModified) {
+    this.file = file;
+    this.sha256 = sha256;
+    this.size = size;
+    this.etag = etag;
+    this.lastModified = lastModified;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Gets the SHA-256 hash of the content, computed while the file was downloaded.
+   *
+   * @return hex-encoded SHA-256 hash
+   */
+  public String getSha256() {
+    return sha256;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public String getLastModified() {
+    return lastModified;
+  }
+}
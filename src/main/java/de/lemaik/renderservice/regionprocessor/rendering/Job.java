@@ -85,6 +85,7 @@ public class Job {
     private String type;
     private String name;
     private String url;
+    private Long size;
 
     public String getType() {
       return type;
@@ -97,5 +98,14 @@ public class Job {
     public String getUrl() {
       return url;
     }
+
+    /**
+     * Gets the size of this file, if the master sent it.
+     *
+     * @return size of this file in bytes, or -1 if unknown
+     */
+    public long getSize() {
+      return size != null ? size : -1;
+    }
   }
 }
@@ -0,0 +1,184 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Admits octree builds based on an estimate of the heap they need, so that a large job doesn't
+ * run the node out of memory halfway through. Every build reserves its estimate from a fixed
+ * budget before it starts. A build that doesn't fit next to the running builds waits until they
+ * release enough memory, a build that is larger than the whole budget is rejected.
+ *
+ * <p>Builds are admitted in the order they arrive, so a large build can't be starved by smaller
+ * ones. The estimate is linear in the number of chunks and the size of the region files, the
+ * actual heap usage is logged next to it so that the factors can be tuned.
+ */
+public class MemoryAdmission {
+
+  private static final Logger LOGGER = LogManager.getLogger(MemoryAdmission.class);
+
+  /**
+   * Heap used by a build regardless of its size, e.g. the scene and the chunk loading buffers.
+   */
+  private static final long BASE_HEAP = 64 * 1024 * 1024;
+
+  private final long budget;
+  private final long heapPerChunk;
+  private final Deque<Object> waiting = new ArrayDeque<>();
+  private long reserved;
+  private int builds;
+
+  /**
+   * Creates a new memory admission.
+   *
+   * @param budget       heap available to all builds together, in bytes
+   * @param heapPerChunk estimated heap needed per chunk, in bytes
+   */
+  public MemoryAdmission(long budget, long heapPerChunk) {
+    this.budget = budget;
+    this.heapPerChunk = heapPerChunk;
+  }
+
+  /**
+   * Estimates the peak heap usage of a build.
+   *
+   * @param chunks       number of chunks in the scene
+   * @param regionBytes  total size of the region files
+   * @param outputBuffer heap that buffers the output, e.g. the pipe of a streamed octree
+   * @return estimated heap usage in bytes
+   */
+  public long estimate(int chunks, long regionBytes, long outputBuffer) {
+    // the region files are counted once for the chunk data that is buffered while loading
+    return BASE_HEAP + chunks * heapPerChunk + regionBytes + outputBuffer;
+  }
+
+  /**
+   * Checks if a build of the given size can ever be admitted.
+   *
+   * @param estimate estimated heap usage in bytes
+   * @return true if the estimate fits into the budget
+   */
+  public boolean fits(long estimate) {
+    return estimate <= budget;
+  }
+
+  /**
+   * Waits until the given amount of memory is available and reserves it. Every call must be
+   * followed by a call to {@link #release(long)}.
+   *
+   * @param estimate estimated heap usage in bytes, must {@link #fits(long) fit} into the budget
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized void acquire(long estimate) throws InterruptedException {
+    Object waiter = new Object();
+    waiting.add(waiter);
+    boolean logged = false;
+    try {
+      while (waiting.peek() != waiter || reserved + estimate > budget) {
+        if (!logged && waiting.peek() == waiter) {
+          LOGGER.info(String.format(
+              "Waiting for %d MB of heap, %d of %d MB are reserved by %d builds",
+              estimate / 1024 / 1024, reserved / 1024 / 1024, budget / 1024 / 1024, builds));
+          logged = true;
+        }
+        wait();
+      }
+    } finally {
+      waiting.remove(waiter);
+      notifyAll();
+    }
+
+    if (builds == 0) {
+      // the peak is measured across all builds that overlap with this one
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+        }
+      }
+    }
+    reserved += estimate;
+    builds++;
+  }
+
+  /**
+   * Releases memory that was reserved with {@link #acquire(long)}.
+   *
+   * @param estimate reserved heap in bytes
+   */
+  public synchronized void release(long estimate) {
+    reserved -= estimate;
+    builds--;
+    notifyAll();
+  }
+
+  /**
+   * Describes the heap usage since the oldest running build started. The pools don't reach their
+   * peaks at the same time, so their peaks are listed separately instead of being added up. The
+   * heap that was still used after the last garbage collection of each pool is the closest figure
+   * to the live data of the builds.
+   *
+   * @return peak usage of every heap pool and the heap used after garbage collection
+   */
+  public static String describeHeapUsage() {
+    StringBuilder peaks = new StringBuilder();
+    long afterCollection = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        if (peaks.length() > 0) {
+          peaks.append(", ");
+        }
+        peaks.append(pool.getName()).append(' ')
+            .append(pool.getPeakUsage().getUsed() / 1024 / 1024).append(" MB");
+        MemoryUsage collectionUsage = pool.getCollectionUsage();
+        if (collectionUsage != null) {
+          afterCollection += collectionUsage.getUsed();
+        }
+      }
+    }
+    return String.format("%d MB after the last garbage collection, peaks: %s",
+        afterCollection / 1024 / 1024, peaks);
+  }
+
+  /**
+   * Checks if any build is waiting for memory.
+   *
+   * @return true if a build is waiting
+   */
+  public synchronized boolean isWaiting() {
+    return !waiting.isEmpty();
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d of %d MB reserved by %d builds", reserved / 1024 / 1024,
+        budget / 1024 / 1024, builds);
+  }
+}
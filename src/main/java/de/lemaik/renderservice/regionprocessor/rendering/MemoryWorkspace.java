@@ -0,0 +1,130 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Working directories on a memory-backed file system, e.g. <code>/dev/shm</code>, for assignments
+ * whose region files fit into a fixed budget. Chunky only reads regions from files, so this keeps
+ * its world loading unchanged while the downloads and the cleanup of small assignments never touch
+ * the disk. Assignments that don't fit into the remaining budget use the job directory on disk
+ * instead. The budget is limited to the space that is available on the file system, e.g.
+ * <code>/dev/shm</code> only has 64 MB in a Docker container by default.
+ */
+public class MemoryWorkspace {
+
+  private static final Logger LOGGER = LogManager.getLogger(MemoryWorkspace.class);
+
+  private final Path directory;
+  private final FileStore fileStore;
+  private final long capacity;
+  private long reserved;
+  private long assignments;
+  private long fallbacks;
+
+  /**
+   * Creates a new memory workspace.
+   *
+   * @param directory directory on a memory-backed file system
+   * @param capacity  maximum size of all working directories, in bytes
+   * @throws IOException if the directory can't be created
+   */
+  public MemoryWorkspace(Path directory, long capacity) throws IOException {
+    File dir = directory.toFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create memory workspace directory " + directory);
+    }
+    this.directory = directory;
+    this.fileStore = Files.getFileStore(directory);
+    long usableSpace = fileStore.getUsableSpace();
+    if (usableSpace < capacity) {
+      LOGGER.warn(String.format("Only %d of %d MB are available for the memory workspace in %s",
+          usableSpace / 1024 / 1024, capacity / 1024 / 1024, directory));
+      capacity = usableSpace;
+    }
+    this.capacity = capacity;
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Checks if the given path is on the same file system as this workspace, i.e. if files can be
+   * hard-linked from there into the workspace instead of being copied.
+   *
+   * @param path path to check
+   * @return true if the path is on the same file system
+   */
+  public boolean isSameFileSystem(Path path) {
+    try {
+      return fileStore.equals(Files.getFileStore(path));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Estimates the size of a working directory.
+   *
+   * @param regionBytes total size of the region files, or a negative value if unknown
+   * @return estimated size in bytes, or -1 if unknown
+   */
+  public long estimate(long regionBytes) {
+    return regionBytes < 0 ? -1 : regionBytes;
+  }
+
+  /**
+   * Reserves space for a working directory, if it fits into the remaining budget.
+   *
+   * @param size estimated size of the working directory, see {@link #estimate(long)}
+   * @return true if the space was reserved, false if the disk should be used instead
+   */
+  public synchronized boolean reserve(long size) {
+    if (size < 0 || reserved + size > capacity) {
+      fallbacks++;
+      return false;
+    }
+    reserved += size;
+    assignments++;
+    return true;
+  }
+
+  /**
+   * Releases the space of a working directory after it was deleted.
+   *
+   * @param size reserved size
+   */
+  public synchronized void release(long size) {
+    reserved -= size;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d of %d MB reserved, %d assignments in memory, %d on disk",
+        reserved / 1024 / 1024, capacity / 1024 / 1024, assignments, fallbacks);
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A persistent cache for region files that is shared by all jobs. Files are stored by the SHA-256
+ * hash of their content, which is computed while they are downloaded, and an index maps the
+ * region URLs to these hashes and to the ETag and Last-Modified validators the master sent.
+ * Worlds can be edited, so a cached URL is revalidated with a conditional request before it is
+ * reused and downloaded again if it changed. URLs without validators are not reused. Cached files
+ * are hard-linked into the job directories. The least recently used files are evicted when the
+ * cache exceeds its maximum size.
+ */
+public class RegionCache {
+
+  private static final Logger LOGGER = LogManager.getLogger(RegionCache.class);
+
+  private final File blobDirectory;
+  private final File indexFile;
+  private final long maxSize;
+  private final RenderServerApiClient apiClient;
+  private final Map<String, DownloadedFile> entriesByUrl = new HashMap<>();
+  private final LinkedHashMap<String, Long> blobSizes = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, CompletableFuture<String>> pendingDownloads = new HashMap<>();
+  private long size;
+  private long hits;
+  private long misses;
+
+  /**
+   * Opens the cache in the given directory.
+   *
+   * @param directory cache directory
+   * @param maxSize   maximum size of the cached files, in bytes
+   * @param apiClient api client to download missing files with
+   */
+  public RegionCache(File directory, long maxSize, RenderServerApiClient apiClient)
+      throws IOException {
+    this.blobDirectory = new File(directory, "blobs");
+    this.indexFile = new File(directory, "index");
+    this.maxSize = maxSize;
+    this.apiClient = apiClient;
+    if (!blobDirectory.isDirectory() && !blobDirectory.mkdirs()) {
+      throw new IOException("Could not create region cache directory " + blobDirectory);
+    }
+    load();
+  }
+
+  private void load() throws IOException {
+    File[] files = blobDirectory.listFiles();
+    if (files != null) {
+      Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+      for (File file : files) {
+        if (file.getName().length() == 64) {
+          blobSizes.put(file.getName(), file.length());
+          size += file.length();
+        } else {
+          // incomplete download
+          file.delete();
+        }
+      }
+    }
+
+    if (indexFile.isFile()) {
+      try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          // sha256, etag, last modified and url, separated by tabs
+          String[] fields = line.split("\t", 4);
+          if (fields.length == 4 && blobSizes.containsKey(fields[0])) {
+            entriesByUrl.put(fields[3], new DownloadedFile(new File(blobDirectory, fields[0]),
+                fields[0], blobSizes.get(fields[0]), emptyToNull(fields[1]),
+                emptyToNull(fields[2])));
+          }
+        }
+      }
+    }
+
+    // compact the index, it is only appended to while the node runs
+    File tmpIndex = new File(indexFile.getAbsolutePath() + ".tmp");
+    try (PrintWriter writer = new PrintWriter(new FileWriter(tmpIndex))) {
+      for (Map.Entry<String, DownloadedFile> entry : entriesByUrl.entrySet()) {
+        writer.println(indexLine(entry.getKey(), entry.getValue()));
+      }
+    }
+    Files.move(tmpIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    evict();
+    LOGGER.info(String.format("Region cache contains %d files (%d MB) for %d URLs",
+        blobSizes.size(), size / 1024 / 1024, entriesByUrl.size()));
+  }
+
+  /**
+   * Puts the region file with the given URL into the given location, downloading it only if it is
+   * not cached yet or changed since it was cached.
+   *
+   * @param relativeUrl URL of the region file, relative to the API
+   * @param sizeHint    expected size of the file in bytes, or -1 if unknown
+   * @param target      file to link the region file to
+   * @return future of the linked file that completes when the file is ready
+   */
+  public CompletableFuture<DownloadedFile> fetch(String relativeUrl, long sizeHint, File target) {
+    CompletableFuture<String> hash;
+    synchronized (this) {
+      if (pendingDownloads.containsKey(relativeUrl)) {
+        // another job is already downloading or revalidating this file
+        hits++;
+        hash = pendingDownloads.get(relativeUrl);
+      } else {
+        DownloadedFile cached = entriesByUrl.get(relativeUrl);
+        if (cached != null && (!blobSizes.containsKey(cached.getSha256())
+            || sizeHint >= 0 && sizeHint != cached.getSize())) {
+          // evicted, or the master announced a different size, so the region changed
+          cached = null;
+        }
+        hash = download(relativeUrl, sizeHint, cached);
+        pendingDownloads.put(relativeUrl, hash);
+        hash.whenComplete((result, e) -> {
+          synchronized (RegionCache.this) {
+            pendingDownloads.remove(relativeUrl);
+          }
+        });
+      }
+    }
+
+    return hash.thenCompose(sha256 -> {
+      try {
+        Long size = link(sha256, target);
+        if (size != null) {
+          return CompletableFuture.completedFuture(new DownloadedFile(target, sha256, size));
+        }
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+      // the file was evicted in the meantime
+      return apiClient.downloadFile(relativeUrl, target, sizeHint);
+    });
+  }
+
+  private CompletableFuture<String> download(String relativeUrl, long sizeHint,
+      DownloadedFile cached) {
+    File partFile = new File(blobDirectory, UUID.randomUUID().toString() + ".part");
+    CompletableFuture<DownloadedFile> download = cached != null
+        ? apiClient.downloadFileIfChanged(relativeUrl, partFile, sizeHint, cached)
+        : apiClient.downloadFile(relativeUrl, partFile, sizeHint);
+    return download.thenApply(downloaded -> {
+      if (downloaded == null) {
+        synchronized (RegionCache.this) {
+          hits++;
+        }
+        return cached.getSha256();
+      }
+      try {
+        add(relativeUrl, downloaded);
+      } catch (IOException e) {
+        partFile.delete();
+        throw new CompletionException(e);
+      }
+      return downloaded.getSha256();
+    });
+  }
+
+  private synchronized void add(String relativeUrl, DownloadedFile downloaded)
+      throws IOException {
+    misses++;
+    File blob = new File(blobDirectory, downloaded.getSha256());
+    if (blobSizes.containsKey(downloaded.getSha256())) {
+      // same content as another URL
+      downloaded.getFile().delete();
+    } else {
+      Files.move(downloaded.getFile().toPath(), blob.toPath());
+      blobSizes.put(downloaded.getSha256(), downloaded.getSize());
+      size += downloaded.getSize();
+    }
+    if (downloaded.getEtag() != null || downloaded.getLastModified() != null) {
+      DownloadedFile entry = new DownloadedFile(blob, downloaded.getSha256(), downloaded.getSize(),
+          downloaded.getEtag(), downloaded.getLastModified());
+      entriesByUrl.put(relativeUrl, entry);
+      try (PrintWriter writer = new PrintWriter(new FileWriter(indexFile, true))) {
+        writer.println(indexLine(relativeUrl, entry));
+      }
+    } else {
+      // without validators, a changed region couldn't be told apart from a cached one
+      entriesByUrl.remove(relativeUrl);
+    }
+    evict();
+  }
+
+  private synchronized Long link(String sha256, File target) throws IOException {
+    File blob = new File(blobDirectory, sha256);
+    Long size = blobSizes.get(sha256);
+    if (size == null || !blob.isFile()) {
+      return null;
+    }
+    blob.setLastModified(System.currentTimeMillis());
+
+    Path targetPath = target.toPath();
+    Files.deleteIfExists(targetPath);
+    try {
+      Files.createLink(targetPath, blob.toPath());
+    } catch (IOException | UnsupportedOperationException e) {
+      // the job directory is on a different file system
+      Files.copy(blob.toPath(), targetPath);
+    }
+    return size;
+  }
+
+  private synchronized void evict() {
+    Iterator<Map.Entry<String, Long>> blobs = blobSizes.entrySet().iterator();
+    while (size > maxSize && blobs.hasNext()) {
+      Map.Entry<String, Long> eldest = blobs.next();
+      new File(blobDirectory, eldest.getKey()).delete();
+      size -= eldest.getValue();
+      entriesByUrl.values().removeIf(entry -> entry.getSha256().equals(eldest.getKey()));
+      blobs.remove();
+    }
+  }
+
+  private static String indexLine(String relativeUrl, DownloadedFile entry) {
+    return entry.getSha256() + "\t" + nullToEmpty(entry.getEtag()) + "\t"
+        + nullToEmpty(entry.getLastModified()) + "\t" + relativeUrl;
+  }
+
+  private static String nullToEmpty(String value) {
+    return value != null ? value : "";
+  }
+
+  private static String emptyToNull(String value) {
+    return value.isEmpty() ? null : value;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d hits, %d misses, %d files (%d MB)", hits, misses, blobSizes.size(),
+        size / 1024 / 1024);
+  }
+}
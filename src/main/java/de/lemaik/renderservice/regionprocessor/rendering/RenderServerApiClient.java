@@ -22,44 +22,193 @@ import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import de.lemaik.renderservice.regionprocessor.Main;
 import de.lemaik.renderservice.regionprocessor.chunky.BinarySceneData;
+import de.lemaik.renderservice.regionprocessor.metrics.NodeMetrics;
+import de.lemaik.renderservice.regionprocessor.util.ParallelGzipOutputStream;
+import de.lemaik.renderservice.regionprocessor.util.TokenBucket;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 import okhttp3.Cache;
+import okhttp3.CacheControl;
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
 import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSink;
 import okio.Okio;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import se.llbit.util.TaskTracker;
 import se.llbit.util.TaskTracker.Task;
 
 public class RenderServerApiClient {
 
+  private static final Logger LOGGER = LogManager.getLogger(RenderServerApiClient.class);
   private static final Gson gson = new Gson();
+  private static final int COMPRESSION_BLOCK_SIZE = 1024 * 1024;
+  private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+  private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+  private static final int UPLOAD_CHUNK_SIZE = 16 * 1024;
   private final String baseUrl;
   private final OkHttpClient client;
+  private final DownloadScheduler downloads;
+  private final ScheduledExecutorService retryExecutor = Executors
+      .newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "download-retry");
+        thread.setDaemon(true);
+        return thread;
+      });
+  private int downloadAttempts = 5;
+  private ExecutorService compressionExecutor;
+  private int compressionLevel;
+  private int compressionThreads;
+  private volatile boolean fileReferences;
+  private long uploadRate;
+  private TokenBucket sharedUploadBucket;
+  private NodeMetrics metrics = new NodeMetrics();
 
   public RenderServerApiClient(String baseUrl, String apiKey, File cacheDirectory,
       long maxCacheSize) {
+    this(baseUrl, apiKey, cacheDirectory, maxCacheSize,
+        new DownloadScheduler(16, 8, DownloadScheduler.Order.LOADER_ORDER), false);
+  }
+
+  /**
+   * Creates a new API client.
+   *
+   * @param baseUrl        URL of the API
+   * @param apiKey         API key
+   * @param cacheDirectory HTTP cache directory
+   * @param maxCacheSize   maximum HTTP cache size, in MB
+   * @param downloads      scheduler for file downloads
+   * @param http1Only      true to only use HTTP/1.1, so that concurrent downloads from the same
+   *                       host use separate connections instead of sharing one HTTP/2 connection
+   */
+  public RenderServerApiClient(String baseUrl, String apiKey, File cacheDirectory,
+      long maxCacheSize, DownloadScheduler downloads, boolean http1Only) {
     this.baseUrl = baseUrl;
-    client = new OkHttpClient.Builder()
+    this.downloads = downloads;
+
+    // leave room for API calls and uploads next to the scheduled downloads
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(downloads.getMaxDownloads() + 16);
+    dispatcher.setMaxRequestsPerHost(downloads.getMaxDownloadsPerHost() + 8);
+
+    OkHttpClient.Builder builder = new OkHttpClient.Builder()
         .cache(new Cache(cacheDirectory, maxCacheSize * 1024 * 1024))
+        .dispatcher(dispatcher)
+        .connectionPool(new ConnectionPool(downloads.getMaxDownloads() + 4, 5, TimeUnit.MINUTES))
         .addInterceptor(chain -> chain.proceed(
             chain.request().newBuilder()
                 .header("User-Agent",
                     "ChunkyCloud Region Processing Node v" + Main.VERSION)
                 .header("X-Api-Key", apiKey)
-                .build()))
-        .build();
+                .build()));
+    if (http1Only) {
+      builder = builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+    }
+    client = builder.build();
+  }
+
+  public DownloadScheduler getDownloadScheduler() {
+    return downloads;
+  }
+
+  /**
+   * Sets how often a file download is attempted before it fails. Interrupted downloads are
+   * resumed where they stopped.
+   *
+   * @param downloadAttempts maximum number of attempts per file
+   */
+  public void setDownloadAttempts(int downloadAttempts) {
+    this.downloadAttempts = downloadAttempts;
+  }
+
+  /**
+   * Enables gzip compression of uploaded scene files. The compression runs on multiple threads.
+   * Only enable this if the master supports gzip-encoded requests.
+   *
+   * @param level   compression level, from 1 (fastest) to 9 (best)
+   * @param threads number of compression threads
+   */
+  public void enableUploadCompression(int level, int threads) {
+    compressionLevel = level;
+    compressionThreads = threads;
+    compressionExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "upload-compression");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Makes uploads skip scene files that the master already has and only send their SHA-256
+   * hashes. Only enable this if the master supports file references.
+   */
+  public void enableFileReferences() {
+    fileReferences = true;
+  }
+
+  public boolean isFileReferencesEnabled() {
+    return fileReferences;
+  }
+
+  /**
+   * Limits the rate of scene file uploads. The limit applies to the bytes that are sent, i.e.
+   * after compression.
+   *
+   * @param kilobytesPerSecond maximum upload rate, in KB/s
+   * @param shared             true to share the rate among all concurrent uploads, false to
+   *                           apply it to every upload separately
+   */
+  public void setUploadRate(int kilobytesPerSecond, boolean shared) {
+    uploadRate = kilobytesPerSecond * 1024L;
+    sharedUploadBucket = shared ? createUploadBucket() : null;
+  }
+
+  /**
+   * Sets the metrics that the downloaded and uploaded bytes are counted in.
+   *
+   * @param metrics node metrics
+   */
+  public void setMetrics(NodeMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  private TokenBucket createUploadBucket() {
+    // allow bursts of a quarter second so that short stalls don't lose bandwidth
+    return new TokenBucket(uploadRate, Math.max(UPLOAD_CHUNK_SIZE, uploadRate / 4));
   }
 
   public CompletableFuture<RenderServiceInfo> getInfo() {
@@ -173,82 +322,335 @@ public class RenderServerApiClient {
     return result;
   }
 
-  public CompletableFuture downloadResourcepack(String name, File file) {
-    return downloadFileImpl(baseUrl + "/resourcepacks/" + name, file);
+  public CompletableFuture<DownloadedFile> downloadResourcepack(String name, File file) {
+    return scheduleDownload(baseUrl + "/resourcepacks/" + name, file, -1, null);
+  }
+
+  public CompletableFuture<DownloadedFile> downloadFile(String relativeUrl, File file) {
+    return downloadFile(relativeUrl, file, -1);
   }
 
-  public CompletableFuture downloadFile(String relativeUrl, File file) {
-    return downloadFileImpl(baseUrl + relativeUrl, file);
+  /**
+   * Downloads a file.
+   *
+   * @param relativeUrl URL of the file, relative to the API
+   * @param file        file to save the download to
+   * @param sizeHint    expected size of the file in bytes, or -1 if unknown, used to prioritize
+   *                    downloads
+   * @return future that completes when the file is downloaded
+   */
+  public CompletableFuture<DownloadedFile> downloadFile(String relativeUrl, File file,
+      long sizeHint) {
+    return scheduleDownload(baseUrl + relativeUrl, file, sizeHint, null);
   }
 
-  private CompletableFuture downloadFileImpl(String url, File file) {
+  /**
+   * Downloads a file, unless it didn't change since a previous download. The server is asked with
+   * the ETag and Last-Modified validators of the previous download.
+   *
+   * @param relativeUrl URL of the file, relative to the API
+   * @param file        file to save the download to
+   * @param sizeHint    expected size of the file in bytes, or -1 if unknown
+   * @param previous    previous download of the file, with the validators the server sent
+   * @return future that completes with the downloaded file, or with null if the file didn't change
+   */
+  public CompletableFuture<DownloadedFile> downloadFileIfChanged(String relativeUrl, File file,
+      long sizeHint, DownloadedFile previous) {
+    return scheduleDownload(baseUrl + relativeUrl, file, sizeHint, previous);
+  }
+
+  private CompletableFuture<DownloadedFile> scheduleDownload(String url, File file,
+      long sizeHint, DownloadedFile previous) {
+    return downloads.schedule(url, sizeHint,
+        progress -> downloadFileImpl(url, file, progress, previous));
+  }
+
+  private CompletableFuture<DownloadedFile> downloadFileImpl(String url, File file,
+      LongConsumer progress, DownloadedFile previous) {
     File tmpFile = new File(file.getAbsolutePath() + ".tmp");
-    CompletableFuture<File> result = new CompletableFuture<>();
+    if (tmpFile.exists()) {
+      // left over from a previous run, don't resume from it
+      tmpFile.delete();
+    }
+    CompletableFuture<DownloadedFile> result = new CompletableFuture<>();
+    attemptDownload(url, file, tmpFile, progress, previous, null, 1, result);
+    return result;
+  }
 
-    client.newCall(new Request.Builder()
-        .url(url).get().build())
+  /**
+   * Downloads a file, resuming from the bytes that are already in the temporary file. Failed
+   * attempts are retried with exponential backoff, unless the failure is permanent. If a previous
+   * download is given and the file didn't change since then, the result completes with null.
+   *
+   * <p>A download is only resumed with an If-Range validator of the partial file, so that the
+   * server sends the whole file again if it changed in the meantime, instead of a range of the new
+   * file that would be appended to the start of the old one.
+   *
+   * @param ifRange strong ETag or Last-Modified date of the bytes in the temporary file, or null
+   *                if the download can't be resumed
+   */
+  private void attemptDownload(String url, File file, File tmpFile, LongConsumer progress,
+      DownloadedFile previous, String ifRange, int attempt,
+      CompletableFuture<DownloadedFile> result) {
+    final long offset = ifRange != null && tmpFile.isFile() ? tmpFile.length() : 0;
+    Request.Builder request = new Request.Builder()
+        // these files are stored on disk anyway and would only evict other files from the cache
+        .cacheControl(new CacheControl.Builder().noStore().build())
+        .url(url).get();
+    if (offset > 0) {
+      request = request.header("Range", "bytes=" + offset + "-").header("If-Range", ifRange);
+    } else if (previous != null) {
+      if (previous.getEtag() != null) {
+        request = request.header("If-None-Match", previous.getEtag());
+      }
+      if (previous.getLastModified() != null) {
+        request = request.header("If-Modified-Since", previous.getLastModified());
+      }
+    }
+
+    client.newCall(request.build())
         .enqueue(new Callback() {
           @Override
           public void onFailure(Call call, IOException e) {
-            result.completeExceptionally(e);
+            retryDownload(url, file, tmpFile, progress, previous, ifRange, attempt, result, e);
           }
 
           @Override
           public void onResponse(Call call, Response response) {
             try {
-              if (response.code() == 200) {
-                try (
-                    ResponseBody body = response.body();
-                    BufferedSink sink = Okio.buffer(Okio.sink(tmpFile))
-                ) {
-                  sink.writeAll(body.source());
-                } catch (IOException e) {
-                  if (tmpFile.exists()) {
-                    tmpFile.delete();
-                  }
-                  result.completeExceptionally(e);
-                  return;
-                }
-                try {
-                  if (!tmpFile.renameTo(file)) {
-                    throw new IOException("Could not rename file " + tmpFile + " to " + file);
-                  }
-                  result.complete(file);
-                } catch (IOException e) {
-                  if (tmpFile.exists()) {
-                    tmpFile.delete();
-                  }
-                  result.completeExceptionally(e);
-                }
+              boolean resumed = response.code() == 206 && offset > 0
+                  && String.valueOf(response.header("Content-Range"))
+                  .startsWith("bytes " + offset + "-");
+              // a 200 response to a resumed attempt means that the file changed, it starts over
+              if (response.code() == 200 || resumed) {
+                writeDownload(response, resumed);
+              } else if (response.code() == 304 && previous != null && offset == 0) {
+                result.complete(null);
+              } else if (response.code() == 206 || response.code() == 416) {
+                // the server didn't resume where we asked it to, start over
+                tmpFile.delete();
+                retryDownload(url, file, tmpFile, progress, previous, null, attempt, result,
+                    new IOException("Download of " + url + " could not be resumed"));
+              } else if (response.code() >= 500 || response.code() == 408
+                  || response.code() == 429) {
+                retryDownload(url, file, tmpFile, progress, previous, ifRange, attempt, result,
+                    new IOException("Download of " + url + " failed (" + response.code() + ")"));
               } else {
-                result.completeExceptionally(new IOException("Download of " + url + " failed"));
+                tmpFile.delete();
+                result.completeExceptionally(
+                    new IOException("Download of " + url + " failed (" + response.code() + ")"));
               }
             } finally {
               response.close();
             }
           }
+
+          private void writeDownload(Response response, boolean resumed) {
+            String validator = resumed ? ifRange : getRangeValidator(response);
+            MessageDigest digest;
+            long size = 0;
+            try {
+              digest = MessageDigest.getInstance("SHA-256");
+              if (resumed) {
+                size = hashFile(tmpFile, digest);
+              }
+            } catch (NoSuchAlgorithmException | IOException e) {
+              tmpFile.delete();
+              result.completeExceptionally(e);
+              return;
+            }
+            try (
+                ResponseBody body = response.body();
+                BufferedSink sink = Okio.buffer(Okio.sink(new FileOutputStream(tmpFile, resumed)))
+            ) {
+              BufferedSource source = body.source();
+              byte[] buffer = new byte[64 * 1024];
+              int n;
+              while ((n = source.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+                sink.write(buffer, 0, n);
+                size += n;
+                progress.accept(n);
+                metrics.addDownloadedBytes(n);
+              }
+            } catch (IOException e) {
+              // keep the temporary file, the next attempt resumes from it if it has a validator
+              retryDownload(url, file, tmpFile, progress, previous, validator, attempt, result, e);
+              return;
+            }
+            try {
+              if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not rename file " + tmpFile + " to " + file);
+              }
+              result.complete(new DownloadedFile(file, toHex(digest.digest()), size,
+                  response.header("ETag"), response.header("Last-Modified")));
+            } catch (IOException e) {
+              if (tmpFile.exists()) {
+                tmpFile.delete();
+              }
+              result.completeExceptionally(e);
+            }
+          }
         });
+  }
 
-    return result;
+  private void retryDownload(String url, File file, File tmpFile, LongConsumer progress,
+      DownloadedFile previous, String ifRange, int attempt,
+      CompletableFuture<DownloadedFile> result, IOException cause) {
+    if (attempt >= downloadAttempts) {
+      tmpFile.delete();
+      result.completeExceptionally(
+          new IOException("Download of " + url + " failed after " + attempt + " attempts", cause));
+      return;
+    }
+    long delay = Math.min(MAX_RETRY_DELAY_MILLIS, INITIAL_RETRY_DELAY_MILLIS << (attempt - 1));
+    LOGGER.warn(String.format("Download of %s failed (%s), retrying in %d ms", url,
+        cause.getMessage(), delay));
+    retryExecutor.schedule(
+        () -> attemptDownload(url, file, tmpFile, progress, previous, ifRange, attempt + 1,
+            result), delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Gets the validator to resume a download of the given response with. Weak ETags can't be used
+   * for ranges, the Last-Modified date is used instead.
+   *
+   * @param response response that is downloaded
+   * @return strong ETag or Last-Modified date, or null if the response has neither
+   */
+  private static String getRangeValidator(Response response) {
+    String etag = response.header("ETag");
+    if (etag != null && !etag.startsWith("W/")) {
+      return etag;
+    }
+    return response.header("Last-Modified");
+  }
+
+  private static long hashFile(File file, MessageDigest digest) throws IOException {
+    long size = 0;
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, n);
+        size += n;
+      }
+    }
+    return size;
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
   }
 
   public CompletableFuture<Void> uploadSceneData(String id, BinarySceneData data,
       TaskTracker taskTracker) {
-    CompletableFuture<Void> result = new CompletableFuture<>();
+    if (!fileReferences || data.getOctreeSha256() == null) {
+      return postSceneFiles(id, sceneBody(data, false, false, taskTracker));
+    }
+
+    // ask the master for the files first, identical scenes produce identical files
+    CompletableFuture<Boolean> hasOctree = hasFile(data.getOctreeSha256());
+    CompletableFuture<Boolean> hasEmittergrid = data.getEmittergridSha256() != null
+        ? hasFile(data.getEmittergridSha256()) : CompletableFuture.completedFuture(false);
+    return hasOctree.thenCombine(hasEmittergrid, (octreeFound, emittergridFound) -> {
+      if (octreeFound) {
+        LOGGER.info("The master already has the octree " + data.getOctreeSha256());
+      }
+      if (emittergridFound) {
+        LOGGER.info("The master already has the emittergrid " + data.getEmittergridSha256());
+      }
+      return sceneBody(data, octreeFound, emittergridFound, taskTracker);
+    }).thenCompose(body -> postSceneFiles(id, body));
+  }
 
+  private static RequestBody sceneBody(BinarySceneData data, boolean skipOctree,
+      boolean skipEmittergrid, TaskTracker taskTracker) {
     MultipartBody.Builder multipartBuilder = new MultipartBody.Builder()
-        .setType(MediaType.parse("multipart/form-data"))
-        .addFormDataPart("octree", "scene.octree2",
-            byteBody(data.getOctree(), () -> taskTracker.task("Upload octree...")));
-    if (data.getEmittergrid() != null) {
-      multipartBuilder = multipartBuilder.addFormDataPart("emittergrid", "scene.emittergrid",
-          byteBody(data.getEmittergrid(), () -> taskTracker.task("Upload emittergrid...")));
+        .setType(MediaType.parse("multipart/form-data"));
+    if (data.getOctreeSha256() != null) {
+      multipartBuilder = multipartBuilder.addFormDataPart("octreeSha256", data.getOctreeSha256());
+    }
+    if (!skipOctree) {
+      multipartBuilder = multipartBuilder.addFormDataPart("octree", "scene.octree2",
+          segmentBody(data.getOctreeSegments(), data.getOctreeSize(),
+              () -> taskTracker.task("Upload octree...")));
+    }
+    if (data.hasEmittergrid()) {
+      if (data.getEmittergridSha256() != null) {
+        multipartBuilder = multipartBuilder
+            .addFormDataPart("emittergridSha256", data.getEmittergridSha256());
+      }
+      if (!skipEmittergrid) {
+        multipartBuilder = multipartBuilder.addFormDataPart("emittergrid", "scene.emittergrid",
+            segmentBody(data.getEmittergridSegments(), data.getEmittergridSize(),
+                () -> taskTracker.task("Upload emittergrid...")));
+      }
+    }
+    return multipartBuilder.build();
+  }
+
+  /**
+   * Checks if the master already has a file with the given content. Any error is treated as
+   * the file not being there, so that it is uploaded.
+   *
+   * @param sha256 hex-encoded SHA-256 hash of the file
+   * @return future that completes with true if the master has the file
+   */
+  private CompletableFuture<Boolean> hasFile(String sha256) {
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    client.newCall(new Request.Builder().url(baseUrl + "/files/" + sha256).head().build())
+        .enqueue(new Callback() {
+          @Override
+          public void onFailure(Call call, IOException e) {
+            LOGGER.warn("Could not check if the master has the file " + sha256, e);
+            result.complete(false);
+          }
+
+          @Override
+          public void onResponse(Call call, Response response) {
+            result.complete(response.code() == 200);
+            response.close();
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Uploads an octree while it is being generated. The upload starts immediately and sends the
+   * octree as it is read from the given stream. The emittergrid is sent afterwards, once the scene
+   * data is complete.
+   *
+   * @param id          job id
+   * @param octree      stream of the octree, usually connected to Chunky through a pipe
+   * @param sceneData   scene data that completes when the scene is saved
+   * @param taskTracker task tracker for the upload
+   * @return future that completes when the upload is done
+   */
+  public CompletableFuture<Void> uploadSceneData(String id, InputStream octree,
+      CompletableFuture<BinarySceneData> sceneData, TaskTracker taskTracker) {
+    return postSceneFiles(id, streamingSceneBody(octree, sceneData, taskTracker));
+  }
+
+  private CompletableFuture<Void> postSceneFiles(String id, RequestBody body) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+
+    Request.Builder request = new Request.Builder().url(baseUrl + "/jobs/" + id + "/files");
+    if (compressionExecutor != null) {
+      request = request.header("Content-Encoding", "gzip");
+      body = gzipBody(body);
     }
+    TokenBucket bucket = null;
+    if (uploadRate > 0) {
+      bucket = sharedUploadBucket != null ? sharedUploadBucket : createUploadBucket();
+    }
+    request = request.post(meteredBody(body, bucket));
 
-    client.newCall(new Request.Builder()
-        .url(baseUrl + "/jobs/" + id + "/files")
-        .post(multipartBuilder.build())
-        .build())
+    client.newCall(request.build())
         .enqueue(new Callback() {
           @Override
           public void onFailure(Call call, IOException e) {
@@ -270,7 +672,7 @@ public class RenderServerApiClient {
     return result;
   }
 
-  private static RequestBody byteBody(final byte[] content,
+  private static RequestBody segmentBody(final List<ByteBuffer> segments, final long size,
       Supplier<Task> taskCreator) {
     TaskTracker.Task task = taskCreator.get();
     return new RequestBody() {
@@ -281,14 +683,198 @@ public class RenderServerApiClient {
 
       @Override
       public long contentLength() {
-        return content.length;
+        return size;
       }
 
       @Override
       public void writeTo(BufferedSink bufferedSink) throws IOException {
-        bufferedSink.write(content);
+        writeSegments(bufferedSink, segments, task, size);
         task.close();
       }
     };
   }
+
+  /**
+   * Writes the given segments in small chunks, so that a throttled upload reports its progress
+   * while it is sent.
+   *
+   * @param sink     sink to write to
+   * @param segments segments to write
+   * @param task     task to report the progress to
+   * @param size     total size of the segments, in bytes
+   */
+  private static void writeSegments(BufferedSink sink, List<ByteBuffer> segments, Task task,
+      long size) throws IOException {
+    byte[] chunk = new byte[UPLOAD_CHUNK_SIZE];
+    long written = 0;
+    for (ByteBuffer segment : segments) {
+      ByteBuffer view = segment.duplicate();
+      while (view.hasRemaining()) {
+        int n = Math.min(chunk.length, view.remaining());
+        view.get(chunk, 0, n);
+        sink.write(chunk, 0, n);
+        written += n;
+        // the task tracker counts in ints, so report in KB
+        task.update((int) (size / 1024), (int) (written / 1024));
+      }
+    }
+  }
+
+  /**
+   * Wraps a request body so that the sent bytes are counted and, if a token bucket is given,
+   * written at the rate it allows.
+   *
+   * @param body   body to send
+   * @param bucket token bucket for the upload, possibly shared with other uploads, or null to not
+   *               throttle the upload
+   */
+  private RequestBody meteredBody(final RequestBody body, final TokenBucket bucket) {
+    return new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return body.contentType();
+      }
+
+      @Override
+      public long contentLength() throws IOException {
+        return body.contentLength();
+      }
+
+      @Override
+      public void writeTo(BufferedSink bufferedSink) throws IOException {
+        BufferedSink meteredSink = Okio.buffer(new ForwardingSink(bufferedSink) {
+          @Override
+          public void write(Buffer source, long byteCount) throws IOException {
+            while (byteCount > 0) {
+              long n = Math.min(UPLOAD_CHUNK_SIZE, byteCount);
+              if (bucket != null) {
+                try {
+                  bucket.acquire(n);
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new InterruptedIOException("Interrupted while throttling the upload");
+                }
+              }
+              super.write(source, n);
+              metrics.addUploadedBytes(n);
+              byteCount -= n;
+            }
+          }
+
+          @Override
+          public void close() throws IOException {
+            // okhttp closes the sink itself
+            flush();
+          }
+        });
+        body.writeTo(meteredSink);
+        meteredSink.close();
+      }
+    };
+  }
+
+  /**
+   * Wraps a request body so that it is gzip-compressed on the compression threads while it is
+   * written.
+   */
+  private RequestBody gzipBody(final RequestBody body) {
+    return new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return body.contentType();
+      }
+
+      @Override
+      public void writeTo(BufferedSink bufferedSink) throws IOException {
+        // okhttp closes the sink itself, so the gzip stream must not close it
+        OutputStream out = new FilterOutputStream(bufferedSink.outputStream()) {
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+          }
+
+          @Override
+          public void close() throws IOException {
+            flush();
+          }
+        };
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, compressionExecutor,
+            compressionLevel, COMPRESSION_BLOCK_SIZE, compressionThreads * 2);
+        BufferedSink gzipSink = Okio.buffer(Okio.sink(gzip));
+        body.writeTo(gzipSink);
+        gzipSink.close();
+
+        LOGGER.info(String.format("Compressed upload from %.1f MB to %.1f MB (ratio %.2f)",
+            gzip.getUncompressedSize() / 1024.0 / 1024.0, gzip.getCompressedSize() / 1024.0 / 1024.0,
+            gzip.getCompressedSize() / (double) Math.max(1, gzip.getUncompressedSize())));
+      }
+    };
+  }
+
+  /**
+   * Creates a multipart body with the same parts as {@link #uploadSceneData(String,
+   * BinarySceneData, TaskTracker)} that streams the octree. The body can only be written once.
+   */
+  private static RequestBody streamingSceneBody(final InputStream octree,
+      final CompletableFuture<BinarySceneData> sceneData, TaskTracker taskTracker) {
+    final String boundary = UUID.randomUUID().toString();
+    return new RequestBody() {
+      private boolean written;
+
+      @Override
+      public MediaType contentType() {
+        return MediaType.parse("multipart/form-data; boundary=" + boundary);
+      }
+
+      @Override
+      public void writeTo(BufferedSink bufferedSink) throws IOException {
+        if (written) {
+          throw new IOException("The octree stream can only be uploaded once");
+        }
+        written = true;
+
+        try (TaskTracker.Task task = taskTracker.task("Upload octree...")) {
+          writePartHeader(bufferedSink, "octree", "scene.octree2");
+          byte[] chunk = new byte[UPLOAD_CHUNK_SIZE];
+          long sent = 0;
+          int n;
+          while ((n = octree.read(chunk)) != -1) {
+            bufferedSink.write(chunk, 0, n);
+            sent += n;
+            // the size of the octree isn't known yet, so only the sent KB are reported
+            task.update((int) (sent / 1024));
+          }
+          bufferedSink.writeUtf8("\r\n");
+        } finally {
+          octree.close();
+        }
+
+        BinarySceneData data;
+        try {
+          data = sceneData.get();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while waiting for the scene data");
+        } catch (ExecutionException e) {
+          throw new IOException("The scene data could not be generated", e.getCause());
+        }
+        if (data.hasEmittergrid()) {
+          try (TaskTracker.Task task = taskTracker.task("Upload emittergrid...")) {
+            writePartHeader(bufferedSink, "emittergrid", "scene.emittergrid");
+            writeSegments(bufferedSink, data.getEmittergridSegments(), task,
+                data.getEmittergridSize());
+            bufferedSink.writeUtf8("\r\n");
+          }
+        }
+        bufferedSink.writeUtf8("--" + boundary + "--\r\n");
+      }
+
+      private void writePartHeader(BufferedSink sink, String name, String fileName)
+          throws IOException {
+        sink.writeUtf8("--" + boundary + "\r\n")
+            .writeUtf8("Content-Disposition: form-data; name=\"" + name + "\"; filename=\""
+                + fileName + "\"\r\n")
+            .writeUtf8("Content-Type: application/octet-stream\r\n\r\n");
+      }
+    };
+  }
 }
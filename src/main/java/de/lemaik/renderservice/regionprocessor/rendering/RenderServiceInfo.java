@@ -18,9 +18,14 @@
 
 package de.lemaik.renderservice.regionprocessor.rendering;
 
+import java.util.Collections;
+import java.util.List;
+
 public class RenderServiceInfo {
     private int version;
     private String rabbitMq;
+    private List<String> uploadEncodings;
+    private boolean fileReferences;
 
     public int getVersion() {
         return version;
@@ -29,4 +34,25 @@ public class RenderServiceInfo {
     public String getRabbitMq() {
         return rabbitMq;
     }
+
+    /**
+     * Gets the content encodings that the master accepts for uploaded scene files. Older masters
+     * don't send this, which means that they only accept uncompressed uploads.
+     *
+     * @return accepted content encodings
+     */
+    public List<String> getUploadEncodings() {
+        return uploadEncodings != null ? uploadEncodings : Collections.emptyList();
+    }
+
+    /**
+     * Checks if the master accepts SHA-256 references to scene files that it already has instead
+     * of the files themselves. The master answers <code>HEAD /files/{sha256}</code> with 200 if it
+     * has a file.
+     *
+     * @return true if file references are supported
+     */
+    public boolean isFileReferences() {
+        return fileReferences;
+    }
 }
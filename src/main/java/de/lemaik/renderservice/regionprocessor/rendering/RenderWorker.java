@@ -21,18 +21,14 @@ package de.lemaik.renderservice.regionprocessor.rendering;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.QueueingConsumer;
 import de.lemaik.renderservice.regionprocessor.Main;
-import de.lemaik.renderservice.regionprocessor.chunky.ChunkyWrapperFactory;
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -44,25 +40,19 @@ public class RenderWorker extends Thread {
 
   private static final Logger LOGGER = LogManager.getLogger(RenderWorker.class);
   private static final String QUEUE_NAME = "rs_prepare_241";
-  private final ExecutorService executorService;
-  private final Path jobDirectory;
-  private final Path texturepacksDirectory;
-  private final ChunkyWrapperFactory chunkyFactory;
+  private final AssignmentPipeline pipeline;
+  private final AssignmentDispatcher dispatcher;
   private final int MAX_RESTART_DELAY_SECONDS = 15 * 60; // 15 minutes
-  private final RenderServerApiClient apiClient;
   private int nextRestartDelaySeconds = 1;
   private ConnectionFactory factory;
   private Connection conn;
   private Channel channel;
+  private volatile CompletableFuture<?> readiness = CompletableFuture.completedFuture(null);
 
-  public RenderWorker(String uri, String name, Path jobDirectory, Path texturepacksDirectory,
-      ChunkyWrapperFactory chunkyFactory,
-      RenderServerApiClient apiClient) {
-    executorService = Executors.newFixedThreadPool(1);
-    this.jobDirectory = jobDirectory;
-    this.texturepacksDirectory = texturepacksDirectory;
-    this.chunkyFactory = chunkyFactory;
-    this.apiClient = apiClient;
+  public RenderWorker(String uri, String name, AssignmentContext context,
+      AssignmentPipeline pipeline) {
+    this.pipeline = pipeline;
+    this.dispatcher = new AssignmentDispatcher(pipeline, context);
     factory = new ConnectionFactory();
     try {
       factory.setUri(uri);
@@ -78,8 +68,19 @@ public class RenderWorker extends Thread {
     factory.setClientProperties(connectionProps);
   }
 
+  /**
+   * Sets a future that needs to complete before assignments are consumed. The connection to
+   * RabbitMQ is established in the meantime.
+   *
+   * @param readiness future that completes when the node is ready
+   */
+  public void setReadiness(CompletableFuture<?> readiness) {
+    this.readiness = readiness;
+  }
+
   @Override
   public void run() {
+    pipeline.start();
     while (!interrupted()) {
       LOGGER.info("Connecting");
       try {
@@ -87,22 +88,14 @@ public class RenderWorker extends Thread {
         LOGGER.info("Connected");
         nextRestartDelaySeconds = 1;
 
-        QueueingConsumer consumer = new QueueingConsumer(channel);
-        channel.basicQos(1, false);
-        channel.basicConsume(QUEUE_NAME, false, consumer);
+        awaitReadiness();
 
-        while (!interrupted() && channel.isOpen()) {
-          try {
-            Path assignmentPath = jobDirectory.resolve(UUID.randomUUID().toString());
-            assignmentPath.toFile().mkdir();
-            executorService.submit(
-                new AssignmentWorker(consumer.nextDelivery(), channel, assignmentPath,
-                    texturepacksDirectory, chunkyFactory.getChunkyInstance(), apiClient));
-          } catch (InterruptedException e) {
-            LOGGER.info("Worker loop interrupted", e);
-            break;
-          }
-        }
+        // assignments that are still in the pipeline are kept when the channel is lost
+        dispatcher.consume(channel, QUEUE_NAME).awaitClose();
+        LOGGER.warn("The channel was closed");
+      } catch (InterruptedException e) {
+        LOGGER.info("Worker loop interrupted", e);
+        interrupt();
       } catch (Exception e) {
         LOGGER.error("An error occurred in the worker loop", e);
       }
@@ -131,6 +124,17 @@ public class RenderWorker extends Thread {
     }
   }
 
+  private void awaitReadiness() throws InterruptedException {
+    if (!readiness.isDone()) {
+      LOGGER.info("Waiting for the warm-up to finish");
+    }
+    try {
+      readiness.get();
+    } catch (ExecutionException e) {
+      LOGGER.warn("Warm-up failed, starting anyway", e.getCause());
+    }
+  }
+
   private void connect() throws IOException {
     try {
       conn = factory.newConnection();
@@ -0,0 +1,348 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import com.google.gson.JsonObject;
+import de.lemaik.renderservice.regionprocessor.chunky.BinarySceneData;
+import de.lemaik.renderservice.regionprocessor.util.SegmentPool;
+import de.lemaik.renderservice.regionprocessor.util.SegmentedBuffer;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import se.llbit.chunky.main.Version;
+
+/**
+ * A persistent cache for generated scene data, so that an assignment that is delivered again (e.g.
+ * because its upload failed) doesn't need to be built again. Entries are keyed by a digest of
+ * everything the scene data depends on (see {@link #getKey}). Assignments with the same key
+ * that are built at the same time share a single build. The least recently used entries are
+ * evicted when the cache exceeds its maximum size.
+ */
+public class SceneDataCache {
+
+  private static final Logger LOGGER = LogManager.getLogger(SceneDataCache.class);
+  private static final String OCTREE = ".octree";
+  private static final String EMITTERGRID = ".emittergrid";
+
+  /**
+   * Version of the cached scene data, increment this when the way the octree is generated changes
+   * so that old entries are not used anymore.
+   */
+  private static final String FORMAT_VERSION = "1";
+
+  private final File directory;
+  private final long maxSize;
+  private final SegmentPool bufferPool;
+  private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, CompletableFuture<Void>> pendingBuilds = new HashMap<>();
+  private long size;
+  private long hits;
+  private long misses;
+  private long sharedBuilds;
+
+  /**
+   * Opens the cache in the given directory.
+   *
+   * @param directory  cache directory
+   * @param maxSize    maximum size of the cached scene data, in bytes
+   * @param bufferPool pool for the buffers of cached scene data
+   */
+  public SceneDataCache(File directory, long maxSize, SegmentPool bufferPool) throws IOException {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.bufferPool = bufferPool;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create scene data cache directory " + directory);
+    }
+
+    File[] files = directory.listFiles();
+    if (files != null) {
+      Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(OCTREE)) {
+          String key = name.substring(0, name.length() - OCTREE.length());
+          long entrySize = file.length() + new File(directory, key + EMITTERGRID).length();
+          entrySizes.put(key, entrySize);
+          size += entrySize;
+        } else if (!name.endsWith(EMITTERGRID)) {
+          // incomplete entry
+          file.delete();
+        }
+      }
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(EMITTERGRID) && !entrySizes
+            .containsKey(name.substring(0, name.length() - EMITTERGRID.length()))) {
+          file.delete();
+        }
+      }
+    }
+    evict();
+    LOGGER.info(String.format("Scene data cache contains %d entries (%d MB)", entrySizes.size(),
+        size / 1024 / 1024));
+  }
+
+  /**
+   * Gets the cached scene data for the given key or builds it. If the same key is already being
+   * built, this waits for that build and returns its result instead of building it again.
+   *
+   * @param key   cache key
+   * @param build builds the scene data if it is not cached
+   * @return the scene data, which must be closed by the caller
+   */
+  public BinarySceneData getOrBuild(String key, Callable<BinarySceneData> build) throws Exception {
+    while (true) {
+      CompletableFuture<Void> pendingBuild;
+      CompletableFuture<Void> ownBuild = null;
+      synchronized (this) {
+        pendingBuild = pendingBuilds.get(key);
+        if (pendingBuild == null && !entrySizes.containsKey(key)) {
+          misses++;
+          ownBuild = new CompletableFuture<>();
+          pendingBuilds.put(key, ownBuild);
+        } else if (pendingBuild != null) {
+          sharedBuilds++;
+        }
+      }
+
+      if (pendingBuild != null) {
+        LOGGER.info("The same scene data is already being generated, waiting for it");
+        try {
+          pendingBuild.get();
+        } catch (ExecutionException e) {
+          LOGGER.info("The other build failed, building it again");
+        }
+        continue;
+      }
+
+      if (ownBuild == null) {
+        BinarySceneData cached = load(key);
+        if (cached != null) {
+          return cached;
+        }
+        continue; // evicted in the meantime
+      }
+
+      try {
+        BinarySceneData data = build.call();
+        try {
+          store(key, data);
+        } catch (IOException e) {
+          LOGGER.warn("Could not cache the scene data", e);
+        }
+        ownBuild.complete(null);
+        return data;
+      } catch (Exception e) {
+        ownBuild.completeExceptionally(e);
+        throw e;
+      } finally {
+        synchronized (this) {
+          pendingBuilds.remove(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the cached scene data for the given key.
+   *
+   * @param key cache key
+   * @return the scene data, which must be closed by the caller, or null if it is not cached
+   */
+  public BinarySceneData get(String key) {
+    BinarySceneData cached = load(key);
+    if (cached == null) {
+      synchronized (this) {
+        misses++;
+      }
+    }
+    return cached;
+  }
+
+  private BinarySceneData load(String key) {
+    File octreeFile = new File(directory, key + OCTREE);
+    File emittergridFile = new File(directory, key + EMITTERGRID);
+    synchronized (this) {
+      if (entrySizes.get(key) == null) {
+        return null;
+      }
+      octreeFile.setLastModified(System.currentTimeMillis());
+    }
+
+    SegmentedBuffer octree = null;
+    try {
+      octree = read(octreeFile);
+      SegmentedBuffer emittergrid = emittergridFile.isFile() ? read(emittergridFile) : null;
+      synchronized (this) {
+        hits++;
+      }
+      return new BinarySceneData(octree, emittergrid);
+    } catch (IOException e) {
+      // evicted while reading it
+      if (octree != null) {
+        octree.release();
+      }
+      synchronized (this) {
+        Long entrySize = entrySizes.remove(key);
+        if (entrySize != null) {
+          size -= entrySize;
+        }
+      }
+      return null;
+    }
+  }
+
+  private SegmentedBuffer read(File file) throws IOException {
+    SegmentedBuffer buffer = new SegmentedBuffer(bufferPool, true);
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] chunk = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(chunk)) >= 0) {
+        buffer.write(chunk, 0, read);
+      }
+    } catch (IOException e) {
+      buffer.release();
+      throw e;
+    }
+    return buffer;
+  }
+
+  private void store(String key, BinarySceneData data) throws IOException {
+    if (!data.hasOctree()) {
+      return;
+    }
+    File octreeFile = new File(directory, key + OCTREE);
+    File emittergridFile = new File(directory, key + EMITTERGRID);
+    // the octree file marks a complete entry, so it is written last
+    if (data.hasEmittergrid()) {
+      write(data.getEmittergrid(), emittergridFile);
+    }
+    write(data.getOctree(), octreeFile);
+
+    synchronized (this) {
+      long entrySize = data.getOctreeSize() + data.getEmittergridSize();
+      Long previous = entrySizes.put(key, entrySize);
+      size += entrySize - (previous != null ? previous : 0);
+      evict();
+    }
+  }
+
+  private void write(InputStream data, File target) throws IOException {
+    File tmp = new File(directory, UUID.randomUUID().toString() + ".part");
+    try {
+      try (InputStream in = data; OutputStream out = new FileOutputStream(tmp)) {
+        byte[] chunk = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(chunk)) >= 0) {
+          out.write(chunk, 0, read);
+        }
+      }
+      Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Long>> entries = entrySizes.entrySet().iterator();
+    while (size > maxSize && entries.hasNext()) {
+      Map.Entry<String, Long> eldest = entries.next();
+      new File(directory, eldest.getKey() + OCTREE).delete();
+      new File(directory, eldest.getKey() + EMITTERGRID).delete();
+      size -= eldest.getValue();
+      entries.remove();
+    }
+  }
+
+  /**
+   * Computes the cache key for an assignment.
+   *
+   * @param scene        scene description, as it is passed to chunky
+   * @param regionHashes SHA-256 hashes of the region files by their name
+   * @param texturepack  name of the texturepack, or null for the default texturepack
+   * @return hex-encoded cache key
+   */
+  public static String getKey(JsonObject scene, Map<String, String> regionHashes,
+      String texturepack) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported", e);
+    }
+    StringBuilder key = new StringBuilder()
+        .append(FORMAT_VERSION).append('\n')
+        .append(Version.getVersion()).append('\n')
+        .append(texturepack).append('\n')
+        .append(scene.toString()).append('\n');
+    for (Map.Entry<String, String> region : new TreeMap<>(regionHashes).entrySet()) {
+      key.append(region.getKey()).append(' ').append(region.getValue()).append('\n');
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest(key.toString().getBytes(StandardCharsets.UTF_8))) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getSharedBuilds() {
+    return sharedBuilds;
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d hits, %d misses, %d shared builds, %d entries (%d MB)", hits, misses,
+        sharedBuilds, entrySizes.size(), size / 1024 / 1024);
+  }
+}
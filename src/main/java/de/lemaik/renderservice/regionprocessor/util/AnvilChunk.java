@@ -0,0 +1,162 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A chunk in the Anvil format of Minecraft 1.17 (256 blocks high, 16 sections), that can be
+ * serialized to NBT for a {@link RegionFileWriter}. Blocks are identified by their name only,
+ * without block state properties.
+ */
+public class AnvilChunk {
+
+  public static final int DATA_VERSION = 2730; // 1.17.1
+  private static final String AIR = "minecraft:air";
+
+  private final int x;
+  private final int z;
+  private final Section[] sections = new Section[16];
+
+  /**
+   * Creates a new chunk that only contains air.
+   *
+   * @param x chunk x coordinate
+   * @param z chunk z coordinate
+   */
+  public AnvilChunk(int x, int z) {
+    this.x = x;
+    this.z = z;
+  }
+
+  /**
+   * Sets a block.
+   *
+   * @param x     x coordinate inside of the chunk (0-15)
+   * @param y     y coordinate (0-255)
+   * @param z     z coordinate inside of the chunk (0-15)
+   * @param block block name, e.g. <code>minecraft:stone</code>
+   */
+  public void setBlock(int x, int y, int z, String block) {
+    Section section = sections[y >> 4];
+    if (section == null) {
+      if (block.equals(AIR)) {
+        return;
+      }
+      section = sections[y >> 4] = new Section();
+    }
+    section.blocks[((y & 15) << 8) | (z << 4) | x] = section.paletteIndex(block);
+  }
+
+  public boolean isEmpty() {
+    for (Section section : sections) {
+      if (section != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Serializes this chunk to uncompressed NBT.
+   *
+   * @return NBT data of this chunk
+   */
+  public byte[] toNbt() throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    NbtWriter nbt = new NbtWriter(buffer);
+    nbt.beginCompound("");
+    nbt.writeInt("DataVersion", DATA_VERSION);
+    nbt.beginCompound("Level");
+    nbt.writeInt("xPos", x);
+    nbt.writeInt("zPos", z);
+    nbt.writeString("Status", "full");
+    nbt.writeLong("LastUpdate", 0);
+    nbt.writeLong("InhabitedTime", 0);
+
+    int sectionCount = 0;
+    for (Section section : sections) {
+      if (section != null) {
+        sectionCount++;
+      }
+    }
+    nbt.beginList("Sections", NbtWriter.TAG_COMPOUND, sectionCount);
+    for (int y = 0; y < sections.length; y++) {
+      if (sections[y] != null) {
+        sections[y].write(nbt, y);
+      }
+    }
+
+    int[] biomes = new int[1024];
+    Arrays.fill(biomes, 1); // plains
+    nbt.writeIntArray("Biomes", biomes);
+    nbt.beginList("Entities", NbtWriter.TAG_COMPOUND, 0);
+    nbt.beginList("TileEntities", NbtWriter.TAG_COMPOUND, 0);
+    nbt.endCompound();
+    nbt.endCompound();
+    nbt.flush();
+    return buffer.toByteArray();
+  }
+
+  private static class Section {
+
+    private final List<String> palette = new ArrayList<>();
+    private final Map<String, Integer> paletteIndices = new HashMap<>();
+    private final int[] blocks = new int[4096];
+
+    Section() {
+      paletteIndex(AIR);
+    }
+
+    int paletteIndex(String block) {
+      Integer index = paletteIndices.get(block);
+      if (index == null) {
+        index = palette.size();
+        palette.add(block);
+        paletteIndices.put(block, index);
+      }
+      return index;
+    }
+
+    void write(NbtWriter nbt, int y) throws IOException {
+      nbt.beginCompound(null);
+      nbt.writeByte("Y", y);
+      nbt.beginList("Palette", NbtWriter.TAG_COMPOUND, palette.size());
+      for (String block : palette) {
+        nbt.beginCompound(null).writeString("Name", block).endCompound();
+      }
+
+      // since 1.16, block states don't span multiple longs
+      int bits = Math.max(4, 32 - Integer.numberOfLeadingZeros(palette.size() - 1));
+      int blocksPerLong = 64 / bits;
+      long[] blockStates = new long[(blocks.length + blocksPerLong - 1) / blocksPerLong];
+      for (int i = 0; i < blocks.length; i++) {
+        blockStates[i / blocksPerLong] |= (long) blocks[i] << ((i % blocksPerLong) * bits);
+      }
+      nbt.writeLongArray("BlockStates", blockStates);
+      nbt.endCompound();
+    }
+  }
+}
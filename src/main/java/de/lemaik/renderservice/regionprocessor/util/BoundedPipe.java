@@ -0,0 +1,213 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pipe that connects one writing thread with one reading thread and buffers at most a fixed
+ * number of chunks. The writer blocks while the pipe is full, the reader blocks while it is
+ * empty. Either side can abort the transfer, which makes the other side fail with an
+ * {@link IOException} instead of blocking forever.
+ */
+public class BoundedPipe {
+
+  private static final byte[] EOF = new byte[0];
+
+  private final BlockingQueue<byte[]> chunks;
+  private final int chunkSize;
+  private final PipeOutputStream sink = new PipeOutputStream();
+  private final PipeInputStream source = new PipeInputStream();
+  private volatile Throwable writerFailure;
+  private volatile boolean cancelled;
+
+  /**
+   * Creates a new pipe.
+   *
+   * @param chunkSize size of a chunk, in bytes
+   * @param maxChunks maximum number of chunks that are buffered
+   */
+  public BoundedPipe(int chunkSize, int maxChunks) {
+    this.chunkSize = chunkSize;
+    this.chunks = new ArrayBlockingQueue<>(maxChunks);
+  }
+
+  public OutputStream sink() {
+    return sink;
+  }
+
+  public InputStream source() {
+    return source;
+  }
+
+  /**
+   * Checks if the writer has closed the pipe, ie. if all data was written.
+   *
+   * @return true if the writing side of this pipe is closed
+   */
+  public boolean isSinkClosed() {
+    return sink.closed;
+  }
+
+  /**
+   * Aborts the transfer from the writing side. The reader will fail with the given cause.
+   *
+   * @param cause reason why the transfer was aborted
+   */
+  public void fail(Throwable cause) {
+    writerFailure = cause;
+    chunks.clear();
+    chunks.offer(EOF);
+  }
+
+  /**
+   * Aborts the transfer from the reading side. The writer will fail on its next write.
+   */
+  public void cancel() {
+    cancelled = true;
+    chunks.clear();
+  }
+
+  private class PipeOutputStream extends OutputStream {
+
+    private byte[] chunk = new byte[chunkSize];
+    private int position;
+    private volatile boolean closed;
+
+    @Override
+    public void write(int b) throws IOException {
+      if (position == chunk.length) {
+        flushChunk();
+      }
+      chunk[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (position == chunk.length) {
+          flushChunk();
+        }
+        int n = Math.min(len, chunk.length - position);
+        System.arraycopy(b, off, chunk, position, n);
+        position += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        if (position > 0) {
+          flushChunk();
+        }
+        put(EOF);
+      }
+    }
+
+    private void flushChunk() throws IOException {
+      byte[] full = chunk;
+      if (position < full.length) {
+        byte[] partial = new byte[position];
+        System.arraycopy(full, 0, partial, 0, position);
+        full = partial;
+      }
+      put(full);
+      chunk = new byte[chunkSize];
+      position = 0;
+    }
+
+    private void put(byte[] data) throws IOException {
+      try {
+        while (!chunks.offer(data, 1, TimeUnit.SECONDS)) {
+          if (cancelled) {
+            throw new IOException("The pipe was closed by the reader");
+          }
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while writing to the pipe");
+      }
+      if (cancelled) {
+        throw new IOException("The pipe was closed by the reader");
+      }
+    }
+  }
+
+  private class PipeInputStream extends InputStream {
+
+    private byte[] chunk;
+    private int position;
+    private boolean eof;
+
+    @Override
+    public int read() throws IOException {
+      if (!nextChunk()) {
+        return -1;
+      }
+      return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!nextChunk()) {
+        return -1;
+      }
+      int n = Math.min(len, chunk.length - position);
+      System.arraycopy(chunk, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public void close() {
+      if (!eof) {
+        cancel();
+      }
+    }
+
+    private boolean nextChunk() throws IOException {
+      while (!eof && (chunk == null || position == chunk.length)) {
+        try {
+          chunk = chunks.take();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while reading from the pipe");
+        }
+        position = 0;
+        if (chunk == EOF) {
+          eof = true;
+        }
+      }
+      if (writerFailure != null) {
+        throw new IOException("The writer failed", writerFailure);
+      }
+      return !eof;
+    }
+  }
+}
@@ -3,43 +3,148 @@ package de.lemaik.renderservice.regionprocessor.util;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * A utility class to download Minecraft jars.
  */
 public class MinecraftDownloader {
 
-  public static CompletableFuture<Response> downloadMinecraft(String version) {
+  private static final Logger LOGGER = LogManager.getLogger(MinecraftDownloader.class);
+
+  /**
+   * Gets the client jar of the given Minecraft version from a cache directory. The jar is stored
+   * in a directory per version, together with its SHA-1 checksum from the version manifest. If
+   * the cached jar matches its checksum, it is used without any network requests. Otherwise it is
+   * downloaded and verified first.
+   *
+   * @param version        Minecraft version
+   * @param cacheDirectory cache directory
+   * @return future of the cached client jar
+   */
+  public static CompletableFuture<File> getMinecraftJar(String version, File cacheDirectory) {
+    File versionDirectory = new File(cacheDirectory, version);
+    File jar = new File(versionDirectory, "client.jar");
+    File checksumFile = new File(versionDirectory, "client.jar.sha1");
+
+    if (jar.isFile() && checksumFile.isFile()) {
+      try {
+        String checksum = new String(Files.readAllBytes(checksumFile.toPath()),
+            StandardCharsets.UTF_8).trim();
+        if (checksum.equalsIgnoreCase(sha1(jar))) {
+          LOGGER.info("Using cached Minecraft " + version + " from " + jar.getAbsolutePath());
+          return CompletableFuture.completedFuture(jar);
+        }
+        LOGGER.warn("Cached Minecraft " + version + " is corrupted, downloading it again");
+      } catch (IOException e) {
+        LOGGER.warn("Could not verify cached Minecraft " + version + ", downloading it again", e);
+      }
+    }
+
+    LOGGER.info("Downloading Minecraft " + version + " to " + jar.getAbsolutePath());
     return getVersionManifestUrl(version)
-        .thenCompose(MinecraftDownloader::getClientUrl)
-        .thenCompose(clientUrl -> {
-          CompletableFuture<Response> result = new CompletableFuture<>();
-
-          new OkHttpClient.Builder().build()
-              .newCall(new Request.Builder()
-                  .url(clientUrl)
-                  .get()
-                  .build())
-              .enqueue(new Callback() {
-                @Override
-                public void onFailure(Call call, IOException e) {
-                  result.completeExceptionally(e);
+        .thenCompose(MinecraftDownloader::getClientDownload)
+        .thenCompose(client -> downloadFile(client.get("url").getAsString())
+            .thenApply(response -> {
+              try (ResponseBody body = response.body()) {
+                if (!response.isSuccessful()) {
+                  throw new IOException("Download failed with status " + response.code());
                 }
-
-                @Override
-                public void onResponse(Call call, Response response) {
-                  result.complete(response);
+                versionDirectory.mkdirs();
+                // nodes that share the cache directory may download at the same time
+                File tmp = File.createTempFile("client", ".jar.tmp", versionDirectory);
+                try {
+                  String checksum = client.get("sha1").getAsString();
+                  String actualChecksum;
+                  try (InputStream in = body.byteStream();
+                      OutputStream out = new FileOutputStream(tmp)) {
+                    actualChecksum = copyAndHash(in, out);
+                  }
+                  if (!checksum.equalsIgnoreCase(actualChecksum)) {
+                    throw new IOException(
+                        "Checksum mismatch, expected " + checksum + " but got " + actualChecksum);
+                  }
+                  Files.move(tmp.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                      StandardCopyOption.ATOMIC_MOVE);
+                  Files.write(checksumFile.toPath(), checksum.getBytes(StandardCharsets.UTF_8));
+                } finally {
+                  tmp.delete();
                 }
-              });
-          return result;
+                return jar;
+              } catch (IOException e) {
+                throw new CompletionException(e);
+              }
+            }));
+  }
+
+  private static CompletableFuture<Response> downloadFile(String url) {
+    CompletableFuture<Response> result = new CompletableFuture<>();
+
+    new OkHttpClient.Builder().build()
+        .newCall(new Request.Builder()
+            .url(url)
+            .get()
+            .build())
+        .enqueue(new Callback() {
+          @Override
+          public void onFailure(Call call, IOException e) {
+            result.completeExceptionally(e);
+          }
+
+          @Override
+          public void onResponse(Call call, Response response) {
+            result.complete(response);
+          }
         });
+    return result;
+  }
+
+  private static String sha1(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return copyAndHash(in, null);
+    }
+  }
+
+  private static String copyAndHash(InputStream in, OutputStream out) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not supported", e);
+    }
+    byte[] buffer = new byte[64 * 1024];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      digest.update(buffer, 0, read);
+      if (out != null) {
+        out.write(buffer, 0, read);
+      }
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
   }
 
   private static CompletableFuture<String> getVersionManifestUrl(final String version) {
@@ -69,8 +174,9 @@ public class MinecraftDownloader {
     return result;
   }
 
-  private static CompletableFuture<String> getClientUrl(final String versionManifestUrl) {
-    CompletableFuture<String> result = new CompletableFuture<>();
+  private static CompletableFuture<JsonObject> getClientDownload(
+      final String versionManifestUrl) {
+    CompletableFuture<JsonObject> result = new CompletableFuture<>();
     new OkHttpClient.Builder().build()
         .newCall(new Request.Builder().url(versionManifestUrl).get().build())
         .enqueue(new Callback() {
@@ -82,8 +188,7 @@ public class MinecraftDownloader {
           @Override
           public void onResponse(Call call, Response response) throws IOException {
             JsonObject parsed = new JsonParser().parse(response.body().string()).getAsJsonObject();
-            result.complete(parsed.getAsJsonObject("downloads").getAsJsonObject("client").get("url")
-                .getAsString());
+            result.complete(parsed.getAsJsonObject("downloads").getAsJsonObject("client"));
           }
         });
 
@@ -0,0 +1,126 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A minimal writer for uncompressed NBT data, as used in Minecraft region files. Tags are written
+ * as they are added, compounds and lists must be closed explicitly. Tags inside of lists are
+ * written without a name by passing <code>null</code> as name.
+ */
+public class NbtWriter {
+
+  public static final int TAG_END = 0;
+  public static final int TAG_BYTE = 1;
+  public static final int TAG_INT = 3;
+  public static final int TAG_LONG = 4;
+  public static final int TAG_STRING = 8;
+  public static final int TAG_LIST = 9;
+  public static final int TAG_COMPOUND = 10;
+  public static final int TAG_INT_ARRAY = 11;
+  public static final int TAG_LONG_ARRAY = 12;
+
+  private final DataOutputStream out;
+
+  public NbtWriter(OutputStream out) {
+    this.out = new DataOutputStream(out);
+  }
+
+  public NbtWriter beginCompound(String name) throws IOException {
+    writeHeader(TAG_COMPOUND, name);
+    return this;
+  }
+
+  public NbtWriter endCompound() throws IOException {
+    out.writeByte(TAG_END);
+    return this;
+  }
+
+  /**
+   * Starts a list. The list ends after the given number of elements was written, there is no
+   * end tag.
+   *
+   * @param name        name of the list
+   * @param elementType tag type of the elements
+   * @param length      number of elements
+   * @return this writer
+   */
+  public NbtWriter beginList(String name, int elementType, int length) throws IOException {
+    writeHeader(TAG_LIST, name);
+    out.writeByte(length > 0 ? elementType : TAG_END);
+    out.writeInt(length);
+    return this;
+  }
+
+  public NbtWriter writeByte(String name, int value) throws IOException {
+    writeHeader(TAG_BYTE, name);
+    out.writeByte(value);
+    return this;
+  }
+
+  public NbtWriter writeInt(String name, int value) throws IOException {
+    writeHeader(TAG_INT, name);
+    out.writeInt(value);
+    return this;
+  }
+
+  public NbtWriter writeLong(String name, long value) throws IOException {
+    writeHeader(TAG_LONG, name);
+    out.writeLong(value);
+    return this;
+  }
+
+  public NbtWriter writeString(String name, String value) throws IOException {
+    writeHeader(TAG_STRING, name);
+    out.writeUTF(value);
+    return this;
+  }
+
+  public NbtWriter writeIntArray(String name, int[] value) throws IOException {
+    writeHeader(TAG_INT_ARRAY, name);
+    out.writeInt(value.length);
+    for (int v : value) {
+      out.writeInt(v);
+    }
+    return this;
+  }
+
+  public NbtWriter writeLongArray(String name, long[] value) throws IOException {
+    writeHeader(TAG_LONG_ARRAY, name);
+    out.writeInt(value.length);
+    for (long v : value) {
+      out.writeLong(v);
+    }
+    return this;
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  private void writeHeader(int type, String name) throws IOException {
+    if (name != null) {
+      out.writeByte(type);
+      out.writeUTF(name);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip output stream that compresses fixed-size blocks on multiple threads, like pigz. Every
+ * block is deflated independently and ends on a byte boundary, so the compressed blocks can simply
+ * be concatenated into a single, standard gzip member. At most a fixed number of blocks are
+ * compressed at the same time, which bounds the memory usage.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0,
+      (byte) 0xff};
+
+  private final OutputStream out;
+  private final ExecutorService executor;
+  private final int level;
+  private final int maxPendingBlocks;
+  private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+  private final byte[] singleByte = new byte[1];
+  private byte[] block;
+  private int blockPosition;
+  private long uncompressedSize;
+  private long compressedSize;
+  private boolean closed;
+
+  /**
+   * Creates a new parallel gzip stream.
+   *
+   * @param out              stream to write the compressed data to
+   * @param executor         executor that compresses the blocks
+   * @param level            compression level, see {@link Deflater}
+   * @param blockSize        size of an uncompressed block, in bytes
+   * @param maxPendingBlocks maximum number of blocks that are compressed at the same time
+   */
+  public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int level,
+      int blockSize, int maxPendingBlocks) throws IOException {
+    this.out = out;
+    this.executor = executor;
+    this.level = level;
+    this.maxPendingBlocks = maxPendingBlocks;
+    this.block = new byte[blockSize];
+    out.write(HEADER);
+    compressedSize = HEADER.length;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    singleByte[0] = (byte) b;
+    write(singleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    crc.update(b, off, len);
+    uncompressedSize += len;
+    while (len > 0) {
+      int n = Math.min(len, block.length - blockPosition);
+      System.arraycopy(b, off, block, blockPosition, n);
+      blockPosition += n;
+      off += n;
+      len -= n;
+      if (blockPosition == block.length) {
+        submitBlock(false);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      submitBlock(true);
+      while (!pendingBlocks.isEmpty()) {
+        writeNextBlock();
+      }
+
+      byte[] trailer = new byte[8];
+      writeIntLE(trailer, 0, (int) crc.getValue());
+      writeIntLE(trailer, 4, (int) uncompressedSize);
+      out.write(trailer);
+      compressedSize += trailer.length;
+    } finally {
+      for (Future<byte[]> pending : pendingBlocks) {
+        pending.cancel(true);
+      }
+      out.close();
+    }
+  }
+
+  public long getUncompressedSize() {
+    return uncompressedSize;
+  }
+
+  public long getCompressedSize() {
+    return compressedSize;
+  }
+
+  private void submitBlock(boolean last) throws IOException {
+    final byte[] data = block;
+    final int length = blockPosition;
+    pendingBlocks.add(executor.submit(() -> deflate(data, length, last)));
+    block = new byte[data.length];
+    blockPosition = 0;
+    while (pendingBlocks.size() >= maxPendingBlocks) {
+      writeNextBlock();
+    }
+  }
+
+  private void writeNextBlock() throws IOException {
+    try {
+      byte[] compressed = pendingBlocks.remove().get();
+      out.write(compressed);
+      compressedSize += compressed.length;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException e) {
+      throw new IOException("Compression failed", e.getCause());
+    }
+  }
+
+  private byte[] deflate(byte[] data, int length, boolean last) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(data, 0, length);
+      if (last) {
+        deflater.finish();
+      }
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      if (last) {
+        while (!deflater.finished()) {
+          n = deflater.deflate(buffer);
+          compressed.write(buffer, 0, n);
+        }
+      } else {
+        // a sync flush ends the block on a byte boundary without ending the deflate stream
+        do {
+          n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          compressed.write(buffer, 0, n);
+        } while (n == buffer.length);
+      }
+      return compressed.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static void writeIntLE(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) value;
+    buffer[offset + 1] = (byte) (value >> 8);
+    buffer[offset + 2] = (byte) (value >> 16);
+    buffer[offset + 3] = (byte) (value >> 24);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a Minecraft region file (<code>.mca</code>). Chunks are zlib-compressed and appended to
+ * the file, the location table is written when the writer is closed.
+ */
+public class RegionFileWriter implements Closeable {
+
+  private static final int SECTOR_SIZE = 4096;
+  private static final int COMPRESSION_ZLIB = 2;
+
+  private final RandomAccessFile file;
+  private final int[] locations = new int[1024];
+  private int nextSector = 2; // the first two sectors are the location and timestamp tables
+
+  public RegionFileWriter(File file) throws IOException {
+    this.file = new RandomAccessFile(file, "rw");
+    this.file.setLength(0);
+  }
+
+  /**
+   * Adds a chunk to this region file.
+   *
+   * @param x   x coordinate of the chunk inside of the region (0-31)
+   * @param z   z coordinate of the chunk inside of the region (0-31)
+   * @param nbt uncompressed NBT data of the chunk
+   */
+  public void writeChunk(int x, int z, byte[] nbt) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (DeflaterOutputStream out = new DeflaterOutputStream(compressed,
+        new Deflater(Deflater.DEFAULT_COMPRESSION))) {
+      out.write(nbt);
+    }
+
+    int length = compressed.size() + 1;
+    int sectors = (length + 4 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    if (sectors > 255) {
+      throw new IOException("Chunk " + x + ", " + z + " is too large");
+    }
+    file.seek((long) nextSector * SECTOR_SIZE);
+    file.writeInt(length);
+    file.writeByte(COMPRESSION_ZLIB);
+    file.write(compressed.toByteArray());
+    locations[x + z * 32] = (nextSector << 8) | sectors;
+    nextSector += sectors;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      file.setLength((long) nextSector * SECTOR_SIZE);
+      file.seek(0);
+      for (int location : locations) {
+        file.writeInt(location);
+      }
+    } finally {
+      file.close();
+    }
+  }
+}
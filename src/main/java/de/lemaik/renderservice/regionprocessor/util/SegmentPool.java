@@ -0,0 +1,115 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of fixed-size direct byte buffers that are reused for {@link SegmentedBuffer}s. Released
+ * segments are kept for the next user, up to a maximum number of idle segments.
+ */
+public class SegmentPool {
+
+  private final int segmentSize;
+  private final int maxIdleSegments;
+  private final Deque<ByteBuffer> idleSegments = new ArrayDeque<>();
+  private int segmentsInUse;
+  private int highWaterMark;
+  private long allocations;
+
+  /**
+   * Creates a new pool.
+   *
+   * @param segmentSize     size of a segment, in bytes
+   * @param maxIdleSegments maximum number of released segments to keep for reuse
+   */
+  public SegmentPool(int segmentSize, int maxIdleSegments) {
+    this.segmentSize = segmentSize;
+    this.maxIdleSegments = maxIdleSegments;
+  }
+
+  /**
+   * Takes a cleared segment from the pool, or allocates a new one if the pool is empty.
+   *
+   * @return a segment
+   */
+  public synchronized ByteBuffer acquire() {
+    ByteBuffer segment = idleSegments.poll();
+    if (segment == null) {
+      segment = ByteBuffer.allocateDirect(segmentSize);
+      allocations++;
+    }
+    segment.clear();
+    segmentsInUse++;
+    highWaterMark = Math.max(highWaterMark, segmentsInUse);
+    return segment;
+  }
+
+  /**
+   * Returns a segment to the pool.
+   *
+   * @param segment segment that was acquired from this pool
+   */
+  public synchronized void release(ByteBuffer segment) {
+    segmentsInUse--;
+    if (idleSegments.size() < maxIdleSegments) {
+      idleSegments.push(segment);
+    }
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  public synchronized int getSegmentsInUse() {
+    return segmentsInUse;
+  }
+
+  public synchronized int getIdleSegments() {
+    return idleSegments.size();
+  }
+
+  /**
+   * Gets the maximum number of segments that were in use at the same time.
+   *
+   * @return high-water mark of segments in use
+   */
+  public synchronized int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * Gets the number of segments that had to be allocated because the pool was empty.
+   *
+   * @return number of segment allocations
+   */
+  public synchronized long getAllocations() {
+    return allocations;
+  }
+
+  @Override
+  public synchronized String toString() {
+    long mb = 1024 * 1024;
+    return String.format("%d MB in use (peak %d MB), %d MB idle, %d segments allocated",
+        segmentsInUse * (long) segmentSize / mb, highWaterMark * (long) segmentSize / mb,
+        idleSegments.size() * (long) segmentSize / mb, allocations);
+  }
+}
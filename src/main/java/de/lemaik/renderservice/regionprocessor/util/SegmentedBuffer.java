@@ -0,0 +1,198 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An output stream that writes into fixed-size segments from a {@link SegmentPool}, so that
+ * growing it never copies data. The content can be read back as read-only segments or as an
+ * input stream. The segments must be returned to the pool with {@link #release()}. Optionally,
+ * the SHA-256 hash of the content is computed while it is written.
+ */
+public class SegmentedBuffer extends OutputStream {
+
+  private final SegmentPool pool;
+  private final List<ByteBuffer> segments = new ArrayList<>();
+  private ByteBuffer current;
+  private long size;
+  private boolean released;
+  private MessageDigest digest;
+  private String sha256;
+
+  public SegmentedBuffer(SegmentPool pool) {
+    this(pool, false);
+  }
+
+  /**
+   * Creates a new buffer.
+   *
+   * @param pool   pool to take the segments from
+   * @param sha256 true to compute the SHA-256 hash of the content while it is written
+   */
+  public SegmentedBuffer(SegmentPool pool, boolean sha256) {
+    this.pool = pool;
+    if (sha256) {
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not supported", e);
+      }
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureWritable().put((byte) b);
+    size++;
+    if (digest != null) {
+      digest.update((byte) b);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (digest != null) {
+      digest.update(b, off, len);
+    }
+    while (len > 0) {
+      ByteBuffer segment = ensureWritable();
+      int n = Math.min(len, segment.remaining());
+      segment.put(b, off, n);
+      off += n;
+      len -= n;
+      size += n;
+    }
+  }
+
+  private ByteBuffer ensureWritable() throws IOException {
+    if (released) {
+      throw new IOException("The buffer was released");
+    }
+    if (current == null || !current.hasRemaining()) {
+      current = pool.acquire();
+      segments.add(current);
+    }
+    return current;
+  }
+
+  /**
+   * Gets the number of bytes that were written to this buffer.
+   *
+   * @return size of the content, in bytes
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Gets the SHA-256 hash of the content. Nothing must be written to this buffer after calling
+   * this method.
+   *
+   * @return hex-encoded SHA-256 hash, or null if the buffer was created without hashing
+   */
+  public synchronized String getSha256() {
+    if (sha256 == null && digest != null) {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      sha256 = hex.toString();
+      digest = null;
+    }
+    return sha256;
+  }
+
+  /**
+   * Gets the content of this buffer as read-only segments. The returned buffers are independent
+   * views, reading them doesn't change this buffer.
+   *
+   * @return read-only views of the segments, in order
+   */
+  public List<ByteBuffer> getSegments() {
+    List<ByteBuffer> views = new ArrayList<>(segments.size());
+    for (ByteBuffer segment : segments) {
+      ByteBuffer view = segment.asReadOnlyBuffer();
+      view.flip();
+      views.add(view);
+    }
+    return Collections.unmodifiableList(views);
+  }
+
+  /**
+   * Creates a new input stream that reads the content of this buffer.
+   *
+   * @return input stream of the content
+   */
+  public InputStream inputStream() {
+    final List<ByteBuffer> views = getSegments();
+    return new InputStream() {
+      private int index;
+
+      @Override
+      public int read() {
+        ByteBuffer segment = nextSegment();
+        return segment != null ? segment.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+          return 0;
+        }
+        ByteBuffer segment = nextSegment();
+        if (segment == null) {
+          return -1;
+        }
+        int n = Math.min(len, segment.remaining());
+        segment.get(b, off, n);
+        return n;
+      }
+
+      private ByteBuffer nextSegment() {
+        while (index < views.size() && !views.get(index).hasRemaining()) {
+          index++;
+        }
+        return index < views.size() ? views.get(index) : null;
+      }
+    };
+  }
+
+  /**
+   * Returns all segments to the pool. The buffer must not be used afterwards.
+   */
+  public synchronized void release() {
+    if (!released) {
+      released = true;
+      for (ByteBuffer segment : segments) {
+        pool.release(segment);
+      }
+      segments.clear();
+      current = null;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that limits a byte rate. Tokens are added at the given rate up to the capacity
+ * of the bucket. A bucket can be shared by multiple threads to give them a common budget; every
+ * caller reserves its bytes immediately and then waits until the bucket has caught up, so
+ * concurrent callers are served in the order they asked.
+ */
+public class TokenBucket {
+
+  private final long rate;
+  private final long capacity;
+  private double tokens;
+  private long lastRefill;
+
+  /**
+   * Creates a new token bucket that starts full.
+   *
+   * @param rate     rate, in bytes per second
+   * @param capacity maximum number of bytes that can be taken at once after being idle
+   */
+  public TokenBucket(long rate, long capacity) {
+    if (rate <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("Rate and capacity must be positive");
+    }
+    this.rate = rate;
+    this.capacity = capacity;
+    this.tokens = capacity;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Takes the given number of bytes from the bucket, waiting until they are available.
+   *
+   * @param bytes number of bytes
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void acquire(long bytes) throws InterruptedException {
+    long waitNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+      lastRefill = now;
+      tokens -= bytes;
+      waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+    }
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  public long getRate() {
+    return rate;
+  }
+}
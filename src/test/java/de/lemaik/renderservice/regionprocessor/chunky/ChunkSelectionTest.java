@@ -0,0 +1,107 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.chunky;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkSelectionTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void needsOnlyRegionsWithSelectedChunks() {
+    ChunkSelection selection = ChunkSelection.fromScene(scene(0, 0, 31, 31, -1, 40));
+
+    assertEquals(3, selection.size());
+    assertTrue(selection.needsFile("r.0.0.mca"));
+    assertTrue(selection.needsFile("r.-1.1.mca"));
+    assertFalse(selection.needsFile("r.1.0.mca"));
+    assertTrue("other files are always needed", selection.needsFile("level.dat"));
+  }
+
+  @Test
+  public void retainsOnlyPresentChunksOfTheRegion() throws IOException {
+    // chunks (0, 0), (1, 0) and (2, 2) of region 0.0 and (32, 0) of region 1.0
+    ChunkSelection selection = ChunkSelection.fromScene(scene(0, 0, 1, 0, 2, 2, 32, 0));
+    File region = regionFile("r.0.0.mca", 0, 2 + 2 * 32);
+
+    assertEquals(1, selection.retainPresentChunks(region));
+    assertEquals(3, selection.size());
+    // chunks of other regions are not touched, even if they are missing in this file
+    assertEquals(0, selection.retainPresentChunks(regionFile("r.5.5.mca")));
+
+    JsonObject scene = new JsonObject();
+    selection.writeTo(scene);
+    assertEquals(scene(0, 0, 2, 2, 32, 0).get("chunkList"), scene.get("chunkList"));
+  }
+
+  @Test
+  public void emptyRegionFileHasNoChunks() throws IOException {
+    ChunkSelection selection = ChunkSelection.fromScene(scene(-1, -1, -32, -32));
+    File region = new File(folder.getRoot(), "r.-1.-1.mca");
+    assertTrue(region.createNewFile());
+
+    assertEquals(2, selection.retainPresentChunks(region));
+    assertEquals(0, selection.size());
+  }
+
+  private static JsonObject scene(int... coordinates) {
+    JsonArray chunkList = new JsonArray();
+    for (int i = 0; i < coordinates.length; i += 2) {
+      JsonArray chunk = new JsonArray();
+      chunk.add(coordinates[i]);
+      chunk.add(coordinates[i + 1]);
+      chunkList.add(chunk);
+    }
+    JsonObject scene = new JsonObject();
+    scene.add("chunkList", chunkList);
+    return scene;
+  }
+
+  /**
+   * Writes a region file header in which only the given chunks have a location.
+   */
+  private File regionFile(String name, int... presentChunks) throws IOException {
+    int[] locations = new int[1024];
+    for (int chunk : presentChunks) {
+      locations[chunk] = (2 << 8) | 1;
+    }
+    File file = new File(folder.getRoot(), name);
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      for (int location : locations) {
+        out.writeInt(location);
+      }
+      out.write(new byte[4096]); // timestamps
+    }
+    return file;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import de.lemaik.renderservice.regionprocessor.rendering.DownloadScheduler.Order;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.Test;
+
+public class DownloadSchedulerTest {
+
+  @Test
+  public void limitsConcurrentDownloads() {
+    DownloadScheduler scheduler = new DownloadScheduler(2, 2, Order.LOADER_ORDER);
+    List<CompletableFuture<String>> started = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      scheduler.schedule("http://master/" + i, -1, progress -> {
+        CompletableFuture<String> download = new CompletableFuture<>();
+        started.add(download);
+        return download;
+      });
+    }
+    assertEquals(2, started.size());
+    assertEquals(3, scheduler.getWaitingDownloads());
+
+    started.get(0).complete("done");
+    assertEquals(3, started.size());
+    assertEquals(2, scheduler.getRunningDownloads());
+  }
+
+  @Test
+  public void downloadThatFailsToStartCompletesExceptionally() throws InterruptedException {
+    DownloadScheduler scheduler = new DownloadScheduler(1, 1, Order.LOADER_ORDER);
+    CompletableFuture<String> first = new CompletableFuture<>();
+    scheduler.schedule("http://master/first", -1, progress -> first);
+    CompletableFuture<String> failing = scheduler.schedule("http://master/failing", -1,
+        progress -> {
+          throw new IllegalStateException("could not start");
+        });
+    List<String> startedAfterwards = new ArrayList<>();
+    CompletableFuture<String> last = scheduler.schedule("http://master/last", -1, progress -> {
+      startedAfterwards.add("last");
+      return CompletableFuture.completedFuture("last");
+    });
+    assertFalse(failing.isDone());
+
+    // the failure must not surface here, this is the thread that finished the first download
+    first.complete("first");
+
+    assertTrue(failing.isCompletedExceptionally());
+    try {
+      failing.get();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertEquals(1, startedAfterwards.size());
+    assertTrue(last.isDone());
+    assertEquals(0, scheduler.getRunningDownloads());
+    assertEquals(0, scheduler.getWaitingDownloads());
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local stand-in for the API of the master. Tests register handlers for the paths they use.
+ */
+public class MockApiServer implements Closeable {
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  public MockApiServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * Handles all requests to the given path and the paths below it.
+   *
+   * @param path    path prefix
+   * @param handler handler
+   */
+  public void on(String path, Handler handler) {
+    server.createContext(path, exchange -> {
+      try {
+        handler.handle(exchange);
+      } catch (IOException e) {
+        // the handler dropped the connection on purpose
+      } finally {
+        exchange.close();
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public static byte[] readBody(HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (InputStream in = exchange.getRequestBody()) {
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        body.write(buffer, 0, n);
+      }
+    }
+    return body.toByteArray();
+  }
+
+  public static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    if (body == null || body.length == 0) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  /**
+   * Announces the whole body but only sends the first bytes of it and then drops the connection,
+   * like an interrupted transfer.
+   *
+   * @param exchange exchange
+   * @param status   status code
+   * @param body     complete body
+   * @param length   number of bytes to send
+   * @throws IOException always, to drop the connection
+   */
+  public static void respondTruncated(HttpExchange exchange, int status, byte[] body, int length)
+      throws IOException {
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body, 0, length);
+    out.flush();
+    throw new IOException("Dropped the connection after " + length + " bytes");
+  }
+
+  public interface Handler {
+
+    void handle(HttpExchange exchange) throws IOException;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RegionCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private MockApiServer server;
+  private RenderServerApiClient client;
+  private volatile byte[] content;
+  private volatile String etag;
+  private volatile int downloads;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new MockApiServer();
+    server.on("/region/r.0.0.mca", exchange -> {
+      if (etag != null && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        MockApiServer.respond(exchange, 304, null);
+        return;
+      }
+      downloads++;
+      if (etag != null) {
+        exchange.getResponseHeaders().set("ETag", etag);
+      }
+      MockApiServer.respond(exchange, 200, content);
+    });
+    client = new RenderServerApiClient(server.getUrl(), "test-api-key",
+        folder.newFolder("http-cache"), 16);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void unchangedRegionIsRevalidated() throws Exception {
+    content = "region v1".getBytes(StandardCharsets.UTF_8);
+    etag = "\"v1\"";
+    RegionCache cache = new RegionCache(folder.newFolder("cache"), 1024 * 1024, client);
+
+    assertArrayEquals(content, fetch(cache, "job1"));
+    assertArrayEquals(content, fetch(cache, "job2"));
+    assertEquals(1, downloads);
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void changedRegionIsDownloadedAgain() throws Exception {
+    content = "region v1".getBytes(StandardCharsets.UTF_8);
+    etag = "\"v1\"";
+    RegionCache cache = new RegionCache(folder.newFolder("cache"), 1024 * 1024, client);
+    assertArrayEquals(content, fetch(cache, "job1"));
+
+    content = "region v2, edited".getBytes(StandardCharsets.UTF_8);
+    etag = "\"v2\"";
+    assertArrayEquals(content, fetch(cache, "job2"));
+    assertEquals(2, downloads);
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void changedRegionIsDownloadedAgainAfterRestart() throws Exception {
+    content = "region v1".getBytes(StandardCharsets.UTF_8);
+    etag = "\"v1\"";
+    File cacheDirectory = folder.newFolder("cache");
+    assertArrayEquals(content,
+        fetch(new RegionCache(cacheDirectory, 1024 * 1024, client), "job1"));
+
+    content = "region v2, edited".getBytes(StandardCharsets.UTF_8);
+    etag = "\"v2\"";
+    assertArrayEquals(content,
+        fetch(new RegionCache(cacheDirectory, 1024 * 1024, client), "job2"));
+    assertEquals(2, downloads);
+  }
+
+  @Test
+  public void regionWithoutValidatorsIsNotReused() throws Exception {
+    content = "region v1".getBytes(StandardCharsets.UTF_8);
+    etag = null;
+    RegionCache cache = new RegionCache(folder.newFolder("cache"), 1024 * 1024, client);
+
+    assertArrayEquals(content, fetch(cache, "job1"));
+    content = "region v2, edited".getBytes(StandardCharsets.UTF_8);
+    assertArrayEquals(content, fetch(cache, "job2"));
+    assertEquals(2, downloads);
+  }
+
+  private byte[] fetch(RegionCache cache, String job) throws Exception {
+    File target = new File(folder.newFolder(job, "region"), "r.0.0.mca");
+    DownloadedFile file = cache.fetch("/region/r.0.0.mca", -1, target)
+        .get(30, TimeUnit.SECONDS);
+    assertEquals(target, file.getFile());
+    return Files.readAllBytes(target.toPath());
+  }
+}
@@ -0,0 +1,406 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import de.lemaik.renderservice.regionprocessor.chunky.BinarySceneData;
+import de.lemaik.renderservice.regionprocessor.util.SegmentPool;
+import de.lemaik.renderservice.regionprocessor.util.SegmentedBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.llbit.util.ProgressListener;
+import se.llbit.util.TaskTracker;
+
+public class RenderServerApiClientTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final SegmentPool pool = new SegmentPool(64 * 1024, 16);
+  private MockApiServer server;
+  private RenderServerApiClient client;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new MockApiServer();
+    client = new RenderServerApiClient(server.getUrl(), "test-api-key",
+        folder.newFolder("http-cache"), 16);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void compressedUpload() throws Exception {
+    byte[] octree = repeat("octree data ", 3 * 1024 * 1024);
+    String[] contentEncoding = new String[1];
+    byte[][] requestBody = new byte[1][];
+    server.on("/jobs/job/files", exchange -> {
+      contentEncoding[0] = exchange.getRequestHeaders().getFirst("Content-Encoding");
+      requestBody[0] = MockApiServer.readBody(exchange);
+      MockApiServer.respond(exchange, 204, null);
+    });
+
+    client.enableUploadCompression(6, 4);
+    try (BinarySceneData data = sceneData(octree)) {
+      client.uploadSceneData("job", data, new TaskTracker(ProgressListener.NONE))
+          .get(30, TimeUnit.SECONDS);
+    }
+
+    assertEquals("gzip", contentEncoding[0]);
+    assertTrue("the request body is smaller than the octree", requestBody[0].length < octree.length);
+    String body = new String(gunzip(requestBody[0]), StandardCharsets.ISO_8859_1);
+    assertTrue(body.contains("name=\"octree\""));
+    assertTrue(body.contains(new String(octree, StandardCharsets.ISO_8859_1)));
+  }
+
+  @Test
+  public void uncompressedUpload() throws Exception {
+    byte[] octree = repeat("octree data ", 100 * 1024);
+    String[] contentEncoding = new String[1];
+    byte[][] requestBody = new byte[1][];
+    server.on("/jobs/job/files", exchange -> {
+      contentEncoding[0] = exchange.getRequestHeaders().getFirst("Content-Encoding");
+      requestBody[0] = MockApiServer.readBody(exchange);
+      MockApiServer.respond(exchange, 204, null);
+    });
+
+    try (BinarySceneData data = sceneData(octree)) {
+      client.uploadSceneData("job", data, new TaskTracker(ProgressListener.NONE))
+          .get(30, TimeUnit.SECONDS);
+    }
+
+    assertEquals(null, contentEncoding[0]);
+    assertTrue(new String(requestBody[0], StandardCharsets.ISO_8859_1)
+        .contains(new String(octree, StandardCharsets.ISO_8859_1)));
+  }
+
+  @Test
+  public void resumesInterruptedDownload() throws Exception {
+    byte[] region = randomData(256 * 1024);
+    List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    List<String> ifRanges = Collections.synchronizedList(new ArrayList<>());
+    server.on("/region/r.0.0.mca", exchange -> {
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      ranges.add(String.valueOf(range));
+      ifRanges.add(String.valueOf(exchange.getRequestHeaders().getFirst("If-Range")));
+      exchange.getResponseHeaders().set("ETag", "\"v1\"");
+      if (range == null) {
+        MockApiServer.respondTruncated(exchange, 200, region, region.length / 2);
+        return;
+      }
+      respondRange(exchange, region, range);
+    });
+
+    File target = new File(folder.getRoot(), "r.0.0.mca");
+    DownloadedFile file = client.downloadFile("/region/r.0.0.mca", target)
+        .get(30, TimeUnit.SECONDS);
+
+    assertEquals(2, ranges.size());
+    assertEquals("null", ranges.get(0));
+    assertTrue(ranges.get(1), ranges.get(1).matches("bytes=[1-9][0-9]*-"));
+    assertEquals("\"v1\"", ifRanges.get(1));
+    assertArrayEquals(region, Files.readAllBytes(target.toPath()));
+    assertEquals(sha256(region), file.getSha256());
+    assertEquals(region.length, file.getSize());
+    assertFalse(new File(target.getPath() + ".tmp").exists());
+  }
+
+  @Test
+  public void restartsDownloadIfFileChanged() throws Exception {
+    byte[] oldRegion = randomData(256 * 1024);
+    byte[] newRegion = randomData(300 * 1024);
+    List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    server.on("/region/r.0.0.mca", exchange -> {
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      ranges.add(String.valueOf(range));
+      if (ranges.size() == 1) {
+        exchange.getResponseHeaders().set("ETag", "\"v1\"");
+        MockApiServer.respondTruncated(exchange, 200, oldRegion, oldRegion.length / 2);
+      } else if ("\"v2\"".equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+        respondRange(exchange, newRegion, range);
+      } else {
+        // the region was edited after the first response, so it is sent again as a whole
+        exchange.getResponseHeaders().set("ETag", "\"v2\"");
+        MockApiServer.respond(exchange, 200, newRegion);
+      }
+    });
+
+    File target = new File(folder.getRoot(), "r.0.0.mca");
+    DownloadedFile file = client.downloadFile("/region/r.0.0.mca", target)
+        .get(30, TimeUnit.SECONDS);
+
+    assertEquals(2, ranges.size());
+    assertTrue(ranges.get(1), ranges.get(1).startsWith("bytes="));
+    assertArrayEquals(newRegion, Files.readAllBytes(target.toPath()));
+    assertEquals(sha256(newRegion), file.getSha256());
+    assertEquals("\"v2\"", file.getEtag());
+  }
+
+  @Test
+  public void doesNotResumeWithoutValidator() throws Exception {
+    byte[] region = randomData(256 * 1024);
+    List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    server.on("/region/r.0.0.mca", exchange -> {
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      ranges.add(String.valueOf(range));
+      if (ranges.size() == 1) {
+        MockApiServer.respondTruncated(exchange, 200, region, region.length / 2);
+      } else {
+        MockApiServer.respond(exchange, 200, region);
+      }
+    });
+
+    File target = new File(folder.getRoot(), "r.0.0.mca");
+    DownloadedFile file = client.downloadFile("/region/r.0.0.mca", target)
+        .get(30, TimeUnit.SECONDS);
+
+    assertEquals(Arrays.asList("null", "null"), ranges);
+    assertArrayEquals(region, Files.readAllBytes(target.toPath()));
+    assertEquals(sha256(region), file.getSha256());
+  }
+
+  @Test
+  public void restartsDownloadIfRangeIsIgnored() throws Exception {
+    byte[] region = randomData(256 * 1024);
+    AtomicInteger requests = new AtomicInteger();
+    server.on("/region/r.0.0.mca", exchange -> {
+      exchange.getResponseHeaders().set("ETag", "\"v1\"");
+      if (requests.getAndIncrement() == 0) {
+        MockApiServer.respondTruncated(exchange, 200, region, region.length / 2);
+      } else {
+        // a server without range support sends the whole file again
+        MockApiServer.respond(exchange, 200, region);
+      }
+    });
+
+    File target = new File(folder.getRoot(), "r.0.0.mca");
+    DownloadedFile file = client.downloadFile("/region/r.0.0.mca", target)
+        .get(30, TimeUnit.SECONDS);
+
+    assertEquals(2, requests.get());
+    assertArrayEquals(region, Files.readAllBytes(target.toPath()));
+    assertEquals(sha256(region), file.getSha256());
+  }
+
+  @Test
+  public void failsAfterMaxAttempts() throws Exception {
+    byte[] region = randomData(64 * 1024);
+    AtomicInteger requests = new AtomicInteger();
+    server.on("/region/r.0.0.mca", exchange -> {
+      requests.incrementAndGet();
+      MockApiServer.respondTruncated(exchange, 200, region, 1024);
+    });
+    client.setDownloadAttempts(2);
+
+    File target = new File(folder.getRoot(), "r.0.0.mca");
+    try {
+      client.downloadFile("/region/r.0.0.mca", target).get(30, TimeUnit.SECONDS);
+      fail("The download should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    assertEquals(2, requests.get());
+    assertFalse(target.exists());
+    assertFalse(new File(target.getPath() + ".tmp").exists());
+  }
+
+  @Test
+  public void doesNotRetryClientErrors() throws Exception {
+    AtomicInteger requests = new AtomicInteger();
+    server.on("/region/r.0.0.mca", exchange -> {
+      requests.incrementAndGet();
+      MockApiServer.respond(exchange, 404, "Not found".getBytes(StandardCharsets.UTF_8));
+    });
+
+    try {
+      client.downloadFile("/region/r.0.0.mca", new File(folder.getRoot(), "r.0.0.mca"))
+          .get(30, TimeUnit.SECONDS);
+      fail("The download should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void skipsFilesTheMasterHas() throws Exception {
+    byte[] octree = repeat("octree data ", 100 * 1024);
+    List<String> checkedFiles = Collections.synchronizedList(new ArrayList<>());
+    server.on("/files/", exchange -> {
+      checkedFiles.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+      MockApiServer.respond(exchange, 200, null);
+    });
+    byte[][] requestBody = new byte[1][];
+    server.on("/jobs/job/files", exchange -> {
+      requestBody[0] = MockApiServer.readBody(exchange);
+      MockApiServer.respond(exchange, 204, null);
+    });
+
+    client.enableFileReferences();
+    try (BinarySceneData data = sceneData(octree)) {
+      client.uploadSceneData("job", data, new TaskTracker(ProgressListener.NONE))
+          .get(30, TimeUnit.SECONDS);
+    }
+
+    assertEquals(Collections.singletonList("HEAD /files/" + sha256(octree)), checkedFiles);
+    String body = new String(requestBody[0], StandardCharsets.ISO_8859_1);
+    assertTrue(body.contains("name=\"octreeSha256\""));
+    assertTrue(body.contains(sha256(octree)));
+    assertFalse(body.contains("name=\"octree\""));
+    assertFalse(body.contains("octree data octree data"));
+  }
+
+  @Test
+  public void uploadsFilesTheMasterDoesNotHave() throws Exception {
+    byte[] octree = repeat("octree data ", 100 * 1024);
+    server.on("/files/", exchange -> MockApiServer.respond(exchange, 404, null));
+    byte[][] requestBody = new byte[1][];
+    server.on("/jobs/job/files", exchange -> {
+      requestBody[0] = MockApiServer.readBody(exchange);
+      MockApiServer.respond(exchange, 204, null);
+    });
+
+    client.enableFileReferences();
+    try (BinarySceneData data = sceneData(octree)) {
+      client.uploadSceneData("job", data, new TaskTracker(ProgressListener.NONE))
+          .get(30, TimeUnit.SECONDS);
+    }
+
+    String body = new String(requestBody[0], StandardCharsets.ISO_8859_1);
+    assertTrue(body.contains("name=\"octreeSha256\""));
+    assertTrue(body.contains(sha256(octree)));
+    assertTrue(body.contains("name=\"octree\""));
+    assertTrue(body.contains(new String(octree, StandardCharsets.ISO_8859_1)));
+  }
+
+  @Test
+  public void skipsCachedFilesTheMasterHas() throws Exception {
+    byte[] octree = repeat("octree data ", 100 * 1024);
+    List<String> checkedFiles = Collections.synchronizedList(new ArrayList<>());
+    server.on("/files/", exchange -> {
+      checkedFiles.add(exchange.getRequestURI().getPath());
+      MockApiServer.respond(exchange, 200, null);
+    });
+    byte[][] requestBody = new byte[1][];
+    server.on("/jobs/job/files", exchange -> {
+      requestBody[0] = MockApiServer.readBody(exchange);
+      MockApiServer.respond(exchange, 204, null);
+    });
+
+    // the hash of cached scene data is computed while it is read back from the disk
+    SceneDataCache cache = new SceneDataCache(folder.newFolder("scene-data"), 16 * 1024 * 1024,
+        pool);
+    cache.getOrBuild("key", () -> {
+      SegmentedBuffer buffer = new SegmentedBuffer(pool, false);
+      buffer.write(octree);
+      return new BinarySceneData(buffer, null);
+    }).close();
+
+    client.enableFileReferences();
+    try (BinarySceneData data = cache.get("key")) {
+      client.uploadSceneData("job", data, new TaskTracker(ProgressListener.NONE))
+          .get(30, TimeUnit.SECONDS);
+    }
+
+    assertEquals(Collections.singletonList("/files/" + sha256(octree)), checkedFiles);
+    String body = new String(requestBody[0], StandardCharsets.ISO_8859_1);
+    assertTrue(body.contains(sha256(octree)));
+    assertFalse(body.contains("name=\"octree\""));
+  }
+
+  private static void respondRange(HttpExchange exchange, byte[] data, String range)
+      throws IOException {
+    int offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+    exchange.getResponseHeaders().set("Content-Range",
+        "bytes " + offset + "-" + (data.length - 1) + "/" + data.length);
+    byte[] rest = new byte[data.length - offset];
+    System.arraycopy(data, offset, rest, 0, rest.length);
+    MockApiServer.respond(exchange, 206, rest);
+  }
+
+  private BinarySceneData sceneData(byte[] octree) throws IOException {
+    SegmentedBuffer buffer = new SegmentedBuffer(pool, true);
+    buffer.write(octree);
+    return new BinarySceneData(buffer, null);
+  }
+
+  private static byte[] randomData(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  private static String sha256(byte[] data) throws Exception {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  private static byte[] repeat(String text, int length) {
+    byte[] pattern = text.getBytes(StandardCharsets.US_ASCII);
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = pattern[i % pattern.length];
+    }
+    return data;
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException {
+    ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        inflated.write(buffer, 0, n);
+      }
+    }
+    return inflated.toByteArray();
+  }
+}
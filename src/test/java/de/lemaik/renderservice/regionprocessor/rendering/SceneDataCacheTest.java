@@ -0,0 +1,121 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import de.lemaik.renderservice.regionprocessor.chunky.BinarySceneData;
+import de.lemaik.renderservice.regionprocessor.util.SegmentPool;
+import de.lemaik.renderservice.regionprocessor.util.SegmentedBuffer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SceneDataCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final SegmentPool pool = new SegmentPool(16 * 1024, 16);
+
+  @Test
+  public void cachedDataIsHashedWhenItIsRead() throws Exception {
+    byte[] octree = randomData(100 * 1024);
+    byte[] emittergrid = randomData(10 * 1024);
+    File directory = folder.newFolder("scene-data");
+    String octreeSha256;
+    String emittergridSha256;
+    try (BinarySceneData built = new SceneDataCache(directory, 1024 * 1024, pool)
+        .getOrBuild("key", () -> sceneData(octree, emittergrid, true))) {
+      octreeSha256 = built.getOctreeSha256();
+      emittergridSha256 = built.getEmittergridSha256();
+    }
+
+    // a new instance only knows the files on the disk
+    try (BinarySceneData cached = new SceneDataCache(directory, 1024 * 1024, pool).get("key")) {
+      assertArrayEquals(octree, readAll(cached.getOctree()));
+      assertArrayEquals(emittergrid, readAll(cached.getEmittergrid()));
+      assertEquals(octreeSha256, cached.getOctreeSha256());
+      assertEquals(emittergridSha256, cached.getEmittergridSha256());
+    }
+  }
+
+  @Test
+  public void buildsOnlyOnce() throws Exception {
+    SceneDataCache cache = new SceneDataCache(folder.newFolder("scene-data"), 1024 * 1024, pool);
+    AtomicInteger builds = new AtomicInteger();
+    byte[] octree = randomData(1024);
+    for (int i = 0; i < 3; i++) {
+      cache.getOrBuild("key", () -> {
+        builds.incrementAndGet();
+        return sceneData(octree, null, false);
+      }).close();
+    }
+    assertEquals(1, builds.get());
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntries() throws Exception {
+    SceneDataCache cache = new SceneDataCache(folder.newFolder("scene-data"), 3000, pool);
+    for (String key : new String[]{"a", "b", "c"}) {
+      cache.getOrBuild(key, () -> sceneData(randomData(1024), null, false)).close();
+    }
+    assertNull(cache.get("a"));
+    cache.get("b").close();
+    cache.get("c").close();
+  }
+
+  private BinarySceneData sceneData(byte[] octree, byte[] emittergrid, boolean sha256)
+      throws IOException {
+    SegmentedBuffer octreeBuffer = new SegmentedBuffer(pool, sha256);
+    octreeBuffer.write(octree);
+    SegmentedBuffer emittergridBuffer = null;
+    if (emittergrid != null) {
+      emittergridBuffer = new SegmentedBuffer(pool, sha256);
+      emittergridBuffer.write(emittergrid);
+    }
+    return new BinarySceneData(octreeBuffer, emittergridBuffer);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] randomData(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
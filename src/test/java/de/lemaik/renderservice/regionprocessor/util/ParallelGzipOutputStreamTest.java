@@ -0,0 +1,136 @@
+/*
+ * rs-rendernode is the worker node software of our RenderService.
+ * Copyright (C) 2016 Wertarbyte <https://wertarbyte.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.lemaik.renderservice.regionprocessor.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest {
+
+  private static final int BLOCK_SIZE = 1024;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void emptyInput() throws IOException {
+    assertRoundTrip(new byte[0]);
+  }
+
+  @Test
+  public void lessThanOneBlock() throws IOException {
+    assertRoundTrip(randomData(BLOCK_SIZE / 2));
+  }
+
+  @Test
+  public void exactlyOneBlock() throws IOException {
+    assertRoundTrip(randomData(BLOCK_SIZE));
+  }
+
+  @Test
+  public void acrossBlockBoundaries() throws IOException {
+    assertRoundTrip(randomData(BLOCK_SIZE * 37 + 123));
+  }
+
+  @Test
+  public void multipleOfBlockSize() throws IOException {
+    assertRoundTrip(randomData(BLOCK_SIZE * 16));
+  }
+
+  @Test
+  public void compressibleInput() throws IOException {
+    byte[] data = new byte[BLOCK_SIZE * 100];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 7);
+    }
+    assertRoundTrip(data);
+  }
+
+  @Test
+  public void singleByteWrites() throws IOException {
+    byte[] data = randomData(BLOCK_SIZE * 3 + 5);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, executor, 6,
+        BLOCK_SIZE, 2)) {
+      for (byte b : data) {
+        out.write(b);
+      }
+    }
+    assertArrayEquals(data, inflate(compressed.toByteArray()));
+  }
+
+  @Test
+  public void reportsSizes() throws IOException {
+    byte[] data = randomData(BLOCK_SIZE * 5 + 17);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, executor, 6,
+        BLOCK_SIZE, 3);
+    out.write(data);
+    out.close();
+    assertEquals(data.length, out.getUncompressedSize());
+    assertEquals(compressed.size(), out.getCompressedSize());
+  }
+
+  private void assertRoundTrip(byte[] data) throws IOException {
+    for (int maxPendingBlocks : new int[]{1, 4}) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, executor, 6,
+          BLOCK_SIZE, maxPendingBlocks)) {
+        // odd chunk sizes, so that writes span block boundaries
+        for (int offset = 0; offset < data.length; offset += 700) {
+          out.write(data, offset, Math.min(700, data.length - offset));
+        }
+      }
+      assertArrayEquals(data, inflate(compressed.toByteArray()));
+    }
+  }
+
+  private static byte[] inflate(byte[] compressed) throws IOException {
+    ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        inflated.write(buffer, 0, n);
+      }
+    }
+    return inflated.toByteArray();
+  }
+
+  private static byte[] randomData(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}